@@ -0,0 +1,268 @@
+// Benchmarks of the k-means implementations and the lock-free queues
+
+// Each benchmark is run for each combination of the parameters n
+// (points), k (clusters) and threads, in a fresh JVM per fork so that
+// JIT compilation and garbage from one benchmark do not affect the
+// next.  Within a fork, a number of warm-up runs are discarded before
+// the measured runs, and the mean and standard deviation of the
+// measured runs are reported and written to a CSV file.  No output is
+// produced inside the timed region.
+
+// The benchmarks cover engines from several files, so compile with
+//   javac TestBenchmarks.java TestKMeans.java TestKMeansQueues.java TestMSQueueNeater.java
+// Some engines are not registered here.  KMeans4V and KMeans4O need
+// the incubating Vector API and the Java 21 preview of the Foreign
+// Function and Memory API.  Including them would impose those compiler
+// and JVM flags on every benchmark, so their own mains time them
+// against KMeans4P.  KMeansDistributed starts its worker JVMs inside
+// findClusters, so its times would be dominated by JVM startup.
+// MiniBatchKMeans consumes a stream of points instead of finding the
+// clusters of a fixed array.
+
+// Usage:
+//   java TestBenchmarks [-n 200000,1000000] [-k 81] [-threads 1,2,4]
+//                       [-warmup 3] [-runs 5] [-forks 1]
+//                       [-only KMeans2,KMeans4P,...] [-out results.csv]
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+public class TestBenchmarks {
+    // k-means benchmarks: the time of one findClusters call
+    static final Map<String, KMeansFactory> kmeans = new LinkedHashMap<>();
+    // Queue benchmarks: the time to pass items from threads producers
+    // to threads consumers through one queue
+    static final Map<String, Supplier<UnboundedQueue<Integer>>> queues = new LinkedHashMap<>();
+
+    static {
+        kmeans.put("KMeans1", (points, k, threads) -> new KMeans1(points, k));
+        kmeans.put("KMeans1P", (points, k, threads) -> new KMeans1P(points, k));
+        kmeans.put("KMeans2", (points, k, threads) -> new KMeans2(points, k));
+        kmeans.put("KMeans2P", (points, k, threads) -> new KMeans2P(points, k));
+        kmeans.put("KMeans2Stm", (points, k, threads) -> new KMeans2Stm(points, k, threads));
+        kmeans.put("KMeans2Q", (points, k, threads) -> new KMeans2Q(points, k, threads, 2, 256));
+        kmeans.put("KMeans2Q-unbatched", (points, k, threads) -> new KMeans2Q(points, k, threads, 2, 1));
+        kmeans.put("KMeans2F", (points, k, threads) -> new KMeans2F(points, k));
+        kmeans.put("KMeans2FP", (points, k, threads) -> new KMeans2FP(points, k, threads));
+        kmeans.put("KMeans2F-kd", (points, k, threads) -> new KMeans2F(points, k, KdTreeIndex::new));
+        kmeans.put("KMeans3", (points, k, threads) -> new KMeans3(points, k));
+        kmeans.put("KMeans3P", (points, k, threads) -> new KMeans3P(points, k));
+        kmeans.put("KMeans4", (points, k, threads) -> new KMeans4(points, k));
+        kmeans.put("KMeans4P", (points, k, threads) -> new KMeans4P(points, k, threads));
+        kmeans.put("KMeans4B", (points, k, threads) -> new KMeans4B(points, k, threads));
+        kmeans.put("KMeans4S", (points, k, threads) -> new KMeans4S(points, k, threads, 4096));
+        kmeans.put("KMeans4F-float", (points, k, threads) -> new KMeans4F(points, k, KMeans4F.Storage.FLOAT, threads));
+        kmeans.put("KMeans4F-quantized", (points, k, threads) -> new KMeans4F(points, k, KMeans4F.Storage.QUANTIZED, threads));
+        kmeans.put("KMeans4M", (points, k, threads) -> new KMeans4M(pointFile(points), k, threads));
+        kmeans.put("KMeansD", (points, k, threads) -> new KMeansD(coordinates(points), 2, k, threads));
+        kmeans.put("KMeans5", (points, k, threads) -> new KMeans5(points, k));
+
+        queues.put("MSQueueNeater", MSQueueNeater::new);
+        queues.put("MSQueueVH", MSQueueVH::new);
+        queues.put("MultiQueue", MultiQueue::new);
+        queues.put("MultiQueue-16", () -> new MultiQueue<>(16));
+    }
+
+    interface KMeansFactory {
+        KMeans make(Point[] points, int k, int threads);
+    }
+
+    private static Point[] filePoints;
+    private static PointFile file;
+
+    // The points written to a temporary PointFile and mapped, once for
+    // each points array; the file is deleted when the JVM exits
+    static PointFile pointFile(Point[] points) {
+        if (points != filePoints) {
+            try {
+                Path path = Files.createTempFile("points", ".bin");
+                path.toFile().deleteOnExit();
+                PointFile.write(path, points);
+                file = PointFile.map(path);
+                filePoints = points;
+            } catch (IOException exn) {
+                throw new RuntimeException(exn);
+            }
+        }
+        return file;
+    }
+
+    // The points as x0, y0, x1, y1, ... for KMeansD with d = 2
+    static double[] coordinates(Point[] points) {
+        final double[] data = new double[2 * points.length];
+        for (int pi = 0; pi < points.length; pi++) {
+            data[2 * pi] = points[pi].x;
+            data[2 * pi + 1] = points[pi].y;
+        }
+        return data;
+    }
+
+    static final int QUEUE_ITEMS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = parseOptions(args);
+        int warmup = Integer.parseInt(opts.getOrDefault("warmup", "3")),
+            runs = Integer.parseInt(opts.getOrDefault("runs", "5"));
+        if (opts.containsKey("fork")) { // Child JVM: run one benchmark, report to parent
+            String[] b = opts.get("fork").split(",");
+            double[] result = run(b[0], Integer.parseInt(b[1]), Integer.parseInt(b[2]),
+                                  Integer.parseInt(b[3]), warmup, runs);
+            System.out.printf("RESULT,%s,%s%n", result[0], result[1]);
+            return;
+        }
+        int[] ns = ints(opts.getOrDefault("n", "200000")),
+              ks = ints(opts.getOrDefault("k", "81")),
+              threads = ints(opts.getOrDefault("threads", "1,2,4"));
+        int forks = Integer.parseInt(opts.getOrDefault("forks", "1"));
+        List<String> only = opts.containsKey("only")
+            ? Arrays.asList(opts.get("only").split(",")) : null;
+        List<String> names = new ArrayList<>(kmeans.keySet());
+        names.addAll(queues.keySet());
+        try (PrintWriter out = new PrintWriter(new FileWriter(opts.getOrDefault("out", "results.csv")))) {
+            out.println("benchmark,n,k,threads,fork,mean_s,sdev_s");
+            for (String name : names) {
+                if (only != null && !only.contains(name))
+                    continue;
+                boolean isQueue = queues.containsKey(name);
+                for (int n : isQueue ? new int[] { QUEUE_ITEMS } : ns)
+                    for (int k : isQueue ? new int[] { 0 } : ks)
+                        for (int t : threads)
+                            for (int f = 0; f < Math.max(1, forks); f++) {
+                                double[] r = forks == 0 ? run(name, n, k, t, warmup, runs)
+                                                        : fork(name, n, k, t, warmup, runs);
+                                String line = String.format("%s,%d,%d,%d,%d,%.6f,%.6f", name, n, k, t, f, r[0], r[1]);
+                                System.out.println(line);
+                                out.println(line);
+                                out.flush();
+                            }
+            }
+        }
+    }
+
+    // Run one benchmark in a fresh JVM with the same class path
+    static double[] fork(String name, int n, int k, int threads, int warmup, int runs)
+            throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process proc = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                          "TestBenchmarks", "-fork", name + "," + n + "," + k + "," + threads,
+                                          "-warmup", "" + warmup, "-runs", "" + runs)
+            .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        double[] result = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(proc.getInputStream()))) {
+            for (String line; (line = in.readLine()) != null; )
+                if (line.startsWith("RESULT,")) {
+                    String[] fields = line.split(",");
+                    result = new double[] { Double.parseDouble(fields[1]), Double.parseDouble(fields[2]) };
+                }
+        }
+        if (proc.waitFor() != 0 || result == null)
+            throw new IOException("Benchmark " + name + " failed in forked JVM");
+        return result;
+    }
+
+    // Run warmup + runs repetitions, return mean and standard deviation
+    // in seconds of the last runs repetitions
+    static double[] run(String name, int n, int k, int threads, int warmup, int runs) throws Exception {
+        Benchmark b;
+        if (queues.containsKey(name))
+            b = () -> timeQueue(queues.get(name).get(), threads, n);
+        else {
+            final Point[] points = GenerateData.randomPoints(n);
+            final int[] initialPoints = GenerateData.randomIndexes(n, k);
+            final KMeansFactory factory = kmeans.get(name);
+            b = () -> {
+                KMeans km = factory.make(points, k, threads);
+                Timer t = new Timer();
+                km.findClusters(initialPoints);
+                return t.check();
+            };
+        }
+        for (int i = 0; i < warmup; i++)
+            b.time();
+        double st = 0.0, sst = 0.0;
+        for (int i = 0; i < runs; i++) {
+            double time = b.time();
+            st += time;
+            sst += time * time;
+        }
+        double mean = st / runs, sdev = Math.sqrt(Math.max(0.0, (sst - mean * mean * runs) / (runs - 1)));
+        return new double[] { mean, runs > 1 ? sdev : 0.0 };
+    }
+
+    interface Benchmark {
+        double time() throws Exception;
+    }
+
+    // Time for producers producer threads to enqueue items items in
+    // total while as many consumer threads dequeue them all
+    static double timeQueue(UnboundedQueue<Integer> queue, int producers, int items) throws Exception {
+        final int consumers = producers;
+        // The clock is read by the barrier actions, when the last thread
+        // arrives, not when the main thread happens to be scheduled again
+        final long[] nanos = new long[2];
+        final CyclicBarrier start = new CyclicBarrier(producers + consumers + 1, () -> nanos[0] = System.nanoTime()),
+                            stop = new CyclicBarrier(producers + consumers + 1, () -> nanos[1] = System.nanoTime());
+        final AtomicInteger producersDone = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int from = (int) ((long) items * p / producers), to = (int) ((long) items * (p + 1) / producers);
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = from; i < to; i++)
+                        queue.enqueue(i);
+                    producersDone.getAndIncrement();
+                    stop.await();
+                } catch (Exception exn) {
+                    throw new RuntimeException(exn);
+                }
+            }));
+        }
+        for (int c = 0; c < consumers; c++)
+            threads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    // Once all producers are done, an empty queue stays empty
+                    while (queue.dequeue() != null || producersDone.get() < producers) { }
+                    stop.await();
+                } catch (Exception exn) {
+                    throw new RuntimeException(exn);
+                }
+            }));
+        for (Thread t : threads)
+            t.start();
+        start.await();
+        stop.await();
+        for (Thread th : threads)
+            th.join();
+        return (nanos[1] - nanos[0]) / 1e9;
+    }
+
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> opts = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("-") || i + 1 == args.length)
+                throw new IllegalArgumentException("Expected -option value, got " + args[i]);
+            opts.put(args[i].substring(1), args[i + 1]);
+        }
+        return opts;
+    }
+
+    static int[] ints(String s) {
+        return Arrays.stream(s.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+}
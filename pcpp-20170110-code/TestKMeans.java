@@ -2,43 +2,90 @@
 // Various implementations of k-means clustering
 // sestoft@itu.dk * 2017-01-04
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static java.nio.file.StandardOpenOption.*;
+
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Random;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collector;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import java.util.function.IntFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 
 public class TestKMeans {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        // java TestKMeans dims: time KMeansD for a range of dimensions d
+        if (args.length > 0 && args[0].equals("dims")) {
+            timeDimensions(50_000, 81, new int[] { 2, 4, 8, 16, 32, 64, 128 });
+            return;
+        }
+        // java TestKMeans minibatch: stream points through MiniBatchKMeans
+        if (args.length > 0 && args[0].equals("minibatch")) {
+            runMiniBatch(81, 1024, 5_000);
+            return;
+        }
+        // java TestKMeans mapped [file]: time KMeans4M on an existing
+        // PointFile, or on a temporary one with the usual points
+        if (args.length > 0 && args[0].equals("mapped")) {
+            timeMapped(200_000, 81, args.length > 1 ? Paths.get(args[1]) : null);
+            return;
+        }
         // There are n points and k clusters
         final int n = 200_000, k = 81;
         final Point[] points = GenerateData.randomPoints(n);
         final int[] initialPoints = GenerateData.randomIndexes(n, k);
+        // final int[] initialPoints = Seeding.kMeansPlusPlus(points, k);
+        // final int[] initialPoints = Seeding.kMeansParallel(points, k);
         for (int i = 0; i < 3; i++) {
             timeKMeans(new KMeans2P (points, k), initialPoints);
             // timeKMeans(new KMeans1P(points, k), initialPoints);
             // timeKMeans(new KMeans2(points, k), initialPoints);
             // timeKMeans(new KMeans2P(points, k), initialPoints);
+            // timeKMeans(new KMeans2F(points, k), initialPoints);
+            // timeKMeans(new KMeans2FP(points, k), initialPoints);
+            // timeKMeans(new KMeans2F(points, k, ScanIndex::new), initialPoints);
+            // timeKMeans(new KMeans2F(points, k, KdTreeIndex::new), initialPoints);
             // timeKMeans(new KMeans2Q(points, k), initialPoints);
             // timeKMeans(new KMeans2Stm(points, k), initialPoints);
             // timeKMeans(new KMeans3(points, k), initialPoints);
             // timeKMeans(new KMeans3P(points, k), initialPoints);
+            // timeKMeans(new KMeans4(points, k), initialPoints);
+            // timeKMeans(new KMeans4P(points, k), initialPoints);
+            // timeKMeans(new KMeans4B(points, k), initialPoints);
+            // timeKMeans(new KMeans5(points, k), initialPoints);
+            // timeKMeans(new KMeans4F(points, k, KMeans4F.Storage.FLOAT), initialPoints);
+            // timeKMeans(new KMeans4F(points, k, KMeans4F.Storage.QUANTIZED), initialPoints);
             System.out.println();
         }
     }
@@ -49,19 +96,170 @@ public class TestKMeans {
         double time = t.check();
         // To avoid seeing the k computed clusters, comment out next line:
         km.print();
-        System.out.printf("%-20s Real time: %9.3f%n", km.getClass(), time);
+        System.out.printf("%-20s Real time: %9.3f  Iterations/s: %9.3f%n",
+                          km.getClass(), time, km.getIterations() / time);
+    }
+
+    // Run MiniBatchKMeans on an endless random point source in one
+    // thread, while the main thread queries its means every 100 ms
+    public static void runMiniBatch(int k, int batchSize, int batches) {
+        final MiniBatchKMeans mb = new MiniBatchKMeans(k, batchSize);
+        Thread runner = new Thread(() -> mb.run(MiniBatchKMeans.randomPointSource(batchSize), batches));
+        Timer t = new Timer();
+        runner.start();
+        try {
+            while (runner.isAlive()) {
+                runner.join(100);
+                Point[] means = mb.getMeans();
+                System.out.printf("%7.3f s: %9d points, %d means%s%n", t.check(), mb.getConsumed(),
+                                  means.length, means.length > 0 ? ", first " + means[0] : "");
+            }
+        } catch (InterruptedException exn) {
+            throw new RuntimeException(exn);
+        }
+        mb.print();
+    }
+
+    // Time KMeans4M on a mapped PointFile.  If path is given, the
+    // existing file is mapped as it is, and its header gives the number
+    // of points; the initial means are drawn from the first 2^31 points.
+    // Otherwise the usual n points are written to a temporary file, and
+    // KMeans4P on the same points in arrays is timed for comparison.
+    public static void timeMapped(int n, int k, Path path) throws IOException {
+        if (path != null) {
+            final PointFile mapped = PointFile.map(path);
+            if (mapped.size() < k)
+                throw new IOException("Fewer than " + k + " points in " + path);
+            final int[] initialPoints =
+                GenerateData.randomIndexes((int) Math.min(mapped.size(), Integer.MAX_VALUE), k);
+            System.out.printf("%s: %d points%n", path, mapped.size());
+            for (int i = 0; i < 3; i++)
+                timeKMeans(new KMeans4M(mapped, k), initialPoints);
+            return;
+        }
+        final Point[] points = GenerateData.randomPoints(n);
+        final int[] initialPoints = GenerateData.randomIndexes(n, k);
+        final Path file = Files.createTempFile("points", ".bin");
+        try {
+            PointFile.write(file, points);
+            PointFile mapped = PointFile.map(file);
+            for (int i = 0; i < 3; i++) {
+                timeKMeans(new KMeans4P(points, k), initialPoints);
+                timeKMeans(new KMeans4M(mapped, k), initialPoints);
+                System.out.println();
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // Time KMeansD sequentially and with 8 tasks on n points of each
+    // dimension d, reporting the time per point per iteration, to see
+    // how the cost of the inner loop grows with d.  The means are not
+    // printed, as there are k of them with d coordinates each.
+    public static void timeDimensions(int n, int k, int[] ds) {
+        final int[] initialPoints = GenerateData.randomIndexes(n, k);
+        for (int d : ds) {
+            final double[] data = GenerateDataD.randomPoints(n, d);
+            for (int taskCount : new int[] { 1, 8 }) {
+                KMeansD km = new KMeansD(data, d, k, taskCount);
+                Timer t = new Timer();
+                km.findClusters(initialPoints);
+                double time = t.check(), perPoint = time * 1e9 / ((double) n * km.getIterations());
+                System.out.printf("d = %3d  tasks = %d  Real time: %9.3f  Iterations: %4d  ns/point: %9.1f  ns/point/d: %6.2f%n",
+                                  d, taskCount, time, km.getIterations(), perPoint, perPoint / d);
+            }
+        }
     }
 }
 
 interface KMeans {
     void findClusters(int[] initialPoints);
 
+    int getIterations();
+
     void print();
 }
 
+// An engine that can report on each iteration of findClusters.  The
+// engines whose iterations do not have separate assignment and update
+// steps, or whose work is not split into tasks of their own, need not
+// implement it.
+
+interface InstrumentedKMeans extends KMeans {
+    // Have listener called after each iteration of findClusters
+    void setListener(KMeansListener listener);
+}
+
+interface KMeansListener {
+    void iteration(IterationStats stats);
+}
+
+// Statistics of one k-means iteration.  An engine creates an instance
+// only when a listener is set, and reuses it for all iterations, so a
+// listener should copy what it wants to keep.
+
+class IterationStats {
+    public int iteration;
+    public long assignNanos, updateNanos; // Wall time of assignment and update step
+    public int changed;                   // Points that changed cluster, -1 if not tracked
+    public double maxShift;               // Largest distance any mean moved
+    public int emptyClusters;             // Clusters that got no points
+    public final long[] taskNanos;        // Busy time of each task, null if sequential
+    private long start;
+
+    public IterationStats(int taskCount) {
+        this.taskNanos = taskCount > 0 ? new long[taskCount] : null;
+    }
+
+    void startAssign(int iteration, boolean tracksChanged) {
+        this.iteration = iteration;
+        changed = tracksChanged ? 0 : -1;
+        maxShift = 0.0;
+        emptyClusters = 0;
+        if (taskNanos != null)
+            Arrays.fill(taskNanos, 0L);
+        start = System.nanoTime();
+    }
+
+    void startUpdate() {
+        long now = System.nanoTime();
+        assignNanos = now - start;
+        start = now;
+    }
+
+    void endUpdate() {
+        updateNanos = System.nanoTime() - start;
+    }
+
+    synchronized void addChanged(int count) {
+        changed += count;
+    }
+
+    synchronized void addTaskNanos(int task, long nanos) {
+        taskNanos[task] += nanos;
+    }
+
+    synchronized void shift(double oldx, double oldy, double newx, double newy) {
+        double dx = newx - oldx, dy = newy - oldy;
+        maxShift = Math.max(maxShift, Math.sqrt(dx * dx + dy * dy));
+    }
+
+    synchronized void addEmpty() {
+        emptyClusters++;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("[%d] assign %.3f ms, update %.3f ms, changed %d, max shift %.3g, empty %d%s",
+                             iteration, assignNanos / 1e6, updateNanos / 1e6, changed, maxShift, emptyClusters,
+                             taskNanos == null ? "" : ", task ns " + Arrays.toString(taskNanos));
+    }
+}
+
 // ----------------------------------------------------------------------
 
-class KMeans1 implements KMeans {
+class KMeans1 implements InstrumentedKMeans {
     // Sequential version 1. A Cluster has an immutable mean field, and
     // a mutable list of immutable Points.
 
@@ -69,6 +267,7 @@ class KMeans1 implements KMeans {
     private final int k;
     private Cluster[] clusters;
     private int iterations;
+    private KMeansListener listener;
 
     public KMeans1(Point[] points, int k) {
         this.points = points;
@@ -77,9 +276,12 @@ class KMeans1 implements KMeans {
 
     public void findClusters(int[] initialPoints) {
         Cluster[] clusters = GenerateData.initialClusters(points, initialPoints, Cluster::new, Cluster[]::new);
+        final IterationStats stats = listener == null ? null : new IterationStats(0);
         boolean converged = false;
         while (!converged) {
             iterations++;
+            if (stats != null)
+                stats.startAssign(iterations, false);
             { // Assignment step: put each point in exactly one cluster
                 for (Point p : points) {
                     Cluster best = null;
@@ -89,6 +291,8 @@ class KMeans1 implements KMeans {
                     best.add(p);
                 }
             }
+            if (stats != null)
+                stats.startUpdate();
             { // Update step: recompute mean of each cluster
                 ArrayList<Cluster> newClusters = new ArrayList<>();
                 converged = true;
@@ -96,17 +300,33 @@ class KMeans1 implements KMeans {
                     Point mean = c.computeMean();
                     if (!c.mean.almostEquals(mean))
                         converged = false;
-                    if (mean != null)
+                    if (mean != null) {
                         newClusters.add(new Cluster(mean));
+                        if (stats != null)
+                            stats.shift(c.mean.x, c.mean.y, mean.x, mean.y);
+                    } else if (stats != null)
+                        stats.addEmpty();
                     else
                         System.out.printf("===> Empty cluster at %s%n", c.mean);
                 }
                 clusters = newClusters.toArray(new Cluster[newClusters.size()]);
             }
+            if (stats != null) {
+                stats.endUpdate();
+                listener.iteration(stats);
+            }
         }
         this.clusters = clusters;
     }
 
+    public void setListener(KMeansListener listener) {
+        this.listener = listener;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
     public void print() {
         for (Cluster c : clusters)
             System.out.println(c);
@@ -144,7 +364,7 @@ class KMeans1 implements KMeans {
 
 // -- PARALLEL -------------------
 
-class KMeans1P implements KMeans {
+class KMeans1P implements InstrumentedKMeans {
     // Parallel version 1. A Cluster has an immutable mean field, and
     // a mutable list of immutable Points.
 
@@ -152,6 +372,7 @@ class KMeans1P implements KMeans {
     private final int k;
     private Cluster[] clusters;
     private int iterations;
+    private KMeansListener listener;
 
     public KMeans1P(Point[] points, int k) {
         this.points = points;
@@ -163,9 +384,12 @@ class KMeans1P implements KMeans {
         boolean converged = false;
         int taskCount = 8;
         int work_per_task_range = (points.length/taskCount);
+        final IterationStats stats = listener == null ? null : new IterationStats(taskCount);
         ExecutorService executor = Executors.newWorkStealingPool();
         while (!converged) {
             iterations++;
+            if (stats != null)
+                stats.startAssign(iterations, false);
             { // Assignment step: put each point in exactly one cluster
                 ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
                 for(int i = 0; i < taskCount; i++){
@@ -174,6 +398,7 @@ class KMeans1P implements KMeans {
                     Cluster[] cs = clusters;
                     final int t = i;
                     tasks.add(executor.submit(() -> {
+                        long start = stats == null ? 0 : System.nanoTime();
                         for(int j = from; j < to; j++) {
                             Point p = points[j];
                             Cluster best = null;
@@ -182,15 +407,19 @@ class KMeans1P implements KMeans {
                                     best = c;
                             best.add(p);
                         }
+                        if (stats != null)
+                            stats.addTaskNanos(t, System.nanoTime() - start);
                     }));
-                    for(Future item : tasks) {
-                        try {
-                            item.get();
-                         } catch (Exception ex) {
-                        }
+                }
+                for(Future item : tasks) {
+                    try {
+                        item.get();
+                     } catch (Exception ex) {
                     }
                 }
             } 
+            if (stats != null)
+                stats.startUpdate();
             { // Update step: recompute mean of each cluster
                 Cluster[] newClusters = new Cluster[clusters.length];
                 ArrayList<Future> tasks = new ArrayList<Future>();
@@ -202,8 +431,12 @@ class KMeans1P implements KMeans {
                         boolean convergedTask = true;
                         if (!c.mean.almostEquals(mean))
                             convergedTask = false;
-                        if (mean != null)
+                        if (mean != null) {
                             newClusters[clusterIndex] = new Cluster(mean);
+                            if (stats != null)
+                                stats.shift(c.mean.x, c.mean.y, mean.x, mean.y);
+                        } else if (stats != null)
+                            stats.addEmpty();
                         else
                             System.out.printf("===> Empty cluster at %s%n", c.mean);
                         return convergedTask;                        
@@ -222,10 +455,23 @@ class KMeans1P implements KMeans {
                 }
                 clusters = newClusters;
             }
+            if (stats != null) {
+                stats.endUpdate();
+                listener.iteration(stats);
+            }
         }
+        executor.shutdown();
         this.clusters=clusters;
     }
 
+    public void setListener(KMeansListener listener) {
+        this.listener = listener;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
     public void print() {
         for (Cluster c : clusters)
             System.out.println(c);
@@ -262,7 +508,7 @@ class KMeans1P implements KMeans {
 }
 // ----------------------------------------------------------------------
 
-class KMeans2 implements KMeans {
+class KMeans2 implements InstrumentedKMeans {
     // Sequential version 2. Data represention: An array points of
     // Points and a same-index array myCluster of the Cluster to which
     // each point belongs, so that points[pi] belongs to myCluster[pi],
@@ -273,6 +519,7 @@ class KMeans2 implements KMeans {
     private final int k;
     private Cluster[] clusters;
     private int iterations;
+    private KMeansListener listener;
 
     public KMeans2(Point[] points, int k) {
         this.points = points;
@@ -282,9 +529,12 @@ class KMeans2 implements KMeans {
     public void findClusters(int[] initialPoints) {
         final Cluster[] clusters = GenerateData.initialClusters(points, initialPoints, Cluster::new, Cluster[]::new);
         final Cluster[] myCluster = new Cluster[points.length];
+        final IterationStats stats = listener == null ? null : new IterationStats(0);
         boolean converged = false;
         while (!converged) {
             iterations++;
+            if (stats != null)
+                stats.startAssign(iterations, true);
             {
                 // Assignment step: put each point in exactly one cluster
                 for (int pi = 0; pi < points.length; pi++) {
@@ -293,9 +543,13 @@ class KMeans2 implements KMeans {
                     for (Cluster c : clusters)
                         if (best == null || p.sqrDist(c.mean) < p.sqrDist(best.mean))
                             best = c;
+                    if (stats != null && myCluster[pi] != best)
+                        stats.changed++;
                     myCluster[pi] = best;
                 }
             }
+            if (stats != null)
+                stats.startUpdate();
             {
                 // Update step: recompute mean of each cluster
                 for (Cluster c : clusters)
@@ -303,14 +557,30 @@ class KMeans2 implements KMeans {
                 for (int pi = 0; pi < points.length; pi++)
                     myCluster[pi].addToMean(points[pi]);
                 converged = true;
-                for (Cluster c : clusters)
+                for (Cluster c : clusters) {
+                    Point oldMean = c.mean;
                     converged &= c.computeNewMean();
+                    if (stats != null)
+                        c.report(stats, oldMean);
+                }
+            }
+            if (stats != null) {
+                stats.endUpdate();
+                listener.iteration(stats);
             }
             // System.out.printf("[%d]", iterations); // To diagnose infinite loops
         }
         this.clusters = clusters;
     }
 
+    public void setListener(KMeansListener listener) {
+        this.listener = listener;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
     public void print() {
         for (Cluster c : clusters)
             System.out.println(c);
@@ -332,8 +602,11 @@ class KMeans2 implements KMeans {
             count++;
         }
 
-        // Recompute mean, return true if it stays almost the same, else false
+        // Recompute mean, return true if it stays almost the same, else
+        // false.  An empty cluster keeps its old mean.
         public boolean computeNewMean() {
+            if (count == 0)
+                return true;
             Point oldMean = this.mean;
             this.mean = new Point(sumx / count, sumy / count);
             return oldMean.almostEquals(this.mean);
@@ -344,6 +617,13 @@ class KMeans2 implements KMeans {
             count = 0;
         }
 
+        void report(IterationStats stats, Point oldMean) {
+            if (count == 0)
+                stats.addEmpty();
+            else
+                stats.shift(oldMean.x, oldMean.y, mean.x, mean.y);
+        }
+
         @Override
         public Point getMean() {
             return mean;
@@ -353,7 +633,7 @@ class KMeans2 implements KMeans {
 
 // -- PARALLEL -------------------
 
-class KMeans2P implements KMeans {
+class KMeans2P implements InstrumentedKMeans {
     // Parallel version 2. Data represention: An array points of
     // Points and a same-index array myCluster of the Cluster to which
     // each point belongs, so that points[pi] belongs to myCluster[pi],
@@ -364,6 +644,7 @@ class KMeans2P implements KMeans {
     private final int k;
     private Cluster[] clusters;
     private int iterations;
+    private KMeansListener listener;
 
     public KMeans2P(Point[] points, int k) {
         this.points = points;
@@ -375,25 +656,37 @@ class KMeans2P implements KMeans {
         final Cluster[] myCluster = new Cluster[points.length];
         int taskCount = 8;
         int work_per_task_range = points.length/taskCount;
+        final IterationStats stats = listener == null ? null : new IterationStats(taskCount);
         ExecutorService executor = Executors.newWorkStealingPool();
         boolean converged = false;
         while (!converged) {
             iterations++;
+            if (stats != null)
+                stats.startAssign(iterations, true);
             {
                 // Assignment step: put each point in exactly one cluster
                 ArrayList<Future<?>> tasks = new ArrayList<Future<?>>();
                 for(int i = 0; i < taskCount; i++) {
                     int from = i * work_per_task_range;
                     int to = (i + 1 == taskCount) ? points.length : work_per_task_range * (i + 1); 
+                    final int t = i;
                     tasks.add(executor.submit(() -> {
+                        long start = stats == null ? 0 : System.nanoTime();
+                        int changed = 0;
                         for (int pi = from; pi < to; pi++) {
                             Point p = points[pi];
                             Cluster best = null;
                             for (Cluster c : clusters)
                                 if (best == null || p.sqrDist(c.mean) < p.sqrDist(best.mean))
                                     best = c;
+                            if (myCluster[pi] != best)
+                                changed++;
                             myCluster[pi] = best;
                         }
+                        if (stats != null) {
+                            stats.addChanged(changed);
+                            stats.addTaskNanos(t, System.nanoTime() - start);
+                        }
                     }));
                 }
                 
@@ -405,6 +698,8 @@ class KMeans2P implements KMeans {
                     }
                 }
             }  
+            if (stats != null)
+                stats.startUpdate();
             {
                 for (Cluster c : clusters)
                     c.resetMean();
@@ -413,19 +708,23 @@ class KMeans2P implements KMeans {
                 ArrayList<Future<?>> tasks2 = new ArrayList<Future<?>>();
                 for(int i = 0; i < taskCount; i++) {
                     int from = i * work_per_task_range;
-                    int to = (i + 1 == taskCount) ? clusters.length : work_per_task_range * (i + 1);
+                    int to = (i + 1 == taskCount) ? points.length : work_per_task_range * (i + 1);
+                    final int t = i;
                     tasks2.add(executor.submit(() -> {
+                        long start = stats == null ? 0 : System.nanoTime();
                         for (int pi = from; pi < to; pi++) {
                             synchronized(myCluster[pi]){
                                 myCluster[pi].addToMean(points[pi]);
                             }
                         }
+                        if (stats != null)
+                            stats.addTaskNanos(t, System.nanoTime() - start);
                     }));
-                    for(Future<?> task : tasks2) {
-                        try {
-                            task.get();
-                        } catch (Exception e) {}
-                    }
+                }
+                for(Future<?> task : tasks2) {
+                    try {
+                        task.get();
+                    } catch (Exception e) {}
                 }
 
                 final AtomicBoolean convergedTask = new AtomicBoolean(true);
@@ -433,7 +732,10 @@ class KMeans2P implements KMeans {
                 List<Future<?>> tasks3 = new ArrayList<Future<?>>();
                 for (Cluster c : clusters){
                     tasks3.add(executor.submit(() -> {
+                        Point oldMean = c.mean;
                         boolean newMean = c.computeNewMean();
+                        if (stats != null)
+                            c.report(stats, oldMean);
                         if(!newMean) {
                             convergedTask.set(false);
                         }
@@ -447,11 +749,24 @@ class KMeans2P implements KMeans {
                 }
                 converged = convergedTask.get();
             }
+            if (stats != null) {
+                stats.endUpdate();
+                listener.iteration(stats);
+            }
             // System.out.printf("[%d]", iterations); // To diagnose infinite loops
         }
+        executor.shutdown();
         this.clusters = clusters;
     }
 
+    public void setListener(KMeansListener listener) {
+        this.listener = listener;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
     public void print() {
         for (Cluster c : clusters)
             System.out.println(c);
@@ -485,6 +800,13 @@ class KMeans2P implements KMeans {
             count = 0;
         }
 
+        void report(IterationStats stats, Point oldMean) {
+            if (count == 0)
+                stats.addEmpty();
+            else
+                stats.shift(oldMean.x, oldMean.y, mean.x, mean.y);
+        }
+
         @Override
         public Point getMean() {
             return mean;
@@ -492,71 +814,2428 @@ class KMeans2P implements KMeans {
     }
 }
 
-// ----------------------------------------------------------------------
+// -- PARALLEL -------------------
 
-class KMeans3 implements KMeans {
-    // Stream-based version. Representation (A2): Immutable Clusters of
-    // immutable Points.
+class KMeans2Stm implements KMeans {
+    // Parallel version 2 using transactional memory.  Data
+    // representation as in KMeans2P, but the running sums of a Cluster
+    // are held in a TxnRef, and in the update step each point is added
+    // to the sums of its cluster in a transaction of its own rather than
+    // while holding the cluster's monitor.  The transactions of the
+    // engine's Stm are counted, so that commits and aborts (conflicts
+    // with another task adding to the same cluster) can be compared for
+    // various k with the locking of KMeans2P and the per-task partial
+    // sums of KMeans2FP and KMeans4P.
 
     private final Point[] points;
     private final int k;
+    private final int taskCount;
+    private final Stm stm = new Stm();
     private Cluster[] clusters;
     private int iterations;
 
-    public KMeans3(Point[] points, int k) {
+    public KMeans2Stm(Point[] points, int k) {
+        this(points, k, 8);
+    }
+
+    public KMeans2Stm(Point[] points, int k, int taskCount) {
         this.points = points;
         this.k = k;
+        this.taskCount = taskCount;
     }
 
     public void findClusters(int[] initialPoints) {
-        Cluster[] clusters = GenerateData.initialClusters(points, initialPoints, Cluster::new, Cluster[]::new);
-        boolean converged = false;
-        while (!converged) {
-            iterations++;
-            { // Assignment step: put each point in exactly one cluster
-                final Cluster[] clustersLocal = clusters; // For capture in lambda
-                // Map<Cluster, List<Point>> groups = ... TODO ...
-                // clusters = groups.entrySet().stream().map(...) ... TODO ...;
-            }
-            { // Update step: recompute mean of each cluster
-              // Cluster[] newClusters = ... TODO ...
-              // converged = Arrays.equals(clusters, newClusters);
-              // clusters = newClusters;
+        final Cluster[] clusters = GenerateData.initialClusters(points, initialPoints, Cluster::new, Cluster[]::new);
+        final Cluster[] myCluster = new Cluster[points.length];
+        ExecutorService executor = Executors.newWorkStealingPool();
+        try {
+            boolean converged = false;
+            while (!converged) {
+                iterations++;
+                {
+                    // Assignment step: put each point in exactly one cluster
+                    KMeans4P.parallelFor(executor, taskCount, points.length, (t, from, to) -> {
+                        for (int pi = from; pi < to; pi++) {
+                            Point p = points[pi];
+                            Cluster best = null;
+                            for (Cluster c : clusters)
+                                if (best == null || p.sqrDist(c.mean) < p.sqrDist(best.mean))
+                                    best = c;
+                            myCluster[pi] = best;
+                        }
+                    });
+                }
+                {
+                    // Update step: recompute mean of each cluster
+                    for (Cluster c : clusters)
+                        c.resetMean();
+                    KMeans4P.parallelFor(executor, taskCount, points.length, (t, from, to) -> {
+                        for (int pi = from; pi < to; pi++)
+                            myCluster[pi].addToMean(stm, points[pi]);
+                    });
+                    converged = true;
+                    for (Cluster c : clusters)
+                        converged &= c.computeNewMean();
+                }
             }
+        } finally {
+            executor.shutdown();
         }
         this.clusters = clusters;
     }
 
+    public int getIterations() {
+        return iterations;
+    }
+
+    public long getCommits() {
+        return stm.getCommits();
+    }
+
+    public long getAborts() {
+        return stm.getAborts();
+    }
+
     public void print() {
         for (Cluster c : clusters)
             System.out.println(c);
-        System.out.printf("Used %d iterations%n", iterations);
+        System.out.printf("Used %d iterations, %d commits, %d aborts%n",
+                          iterations, stm.getCommits(), stm.getAborts());
     }
 
     static class Cluster extends ClusterBase {
-        private final List<Point> points;
-        private final Point mean;
+        private Point mean;
+        private final TxnRef<Sums> sums = new TxnRef<>(Sums.ZERO);
 
         public Cluster(Point mean) {
-            this(mean, new ArrayList<>());
+            this.mean = mean;
         }
 
-        public Cluster(Point mean, List<Point> points) {
-            this.mean = mean;
-            this.points = Collections.unmodifiableList(points);
+        public void addToMean(Stm stm, Point p) {
+            stm.atomic(txn -> {
+                txn.write(sums, txn.read(sums).plus(p));
+                return null;
+            });
+        }
+
+        // Recompute mean, return true if it stays almost the same, else false
+        public boolean computeNewMean() {
+            Point oldMean = this.mean;
+            Sums s = sums.get();
+            this.mean = new Point(s.sumx / s.count, s.sumy / s.count);
+            return oldMean.almostEquals(this.mean);
+        }
+
+        public void resetMean() {
+            sums.set(Sums.ZERO);
         }
 
         @Override
         public Point getMean() {
             return mean;
         }
+    }
 
-        public Cluster computeMean() {
-            double sumx = points.stream().mapToDouble(p -> p.x).sum(),
-                    sumy = points.stream().mapToDouble(p -> p.y).sum();
-            Point newMean = new Point(sumx / points.size(), sumy / points.size());
-            return new Cluster(newMean, points);
+    // Immutable running sums, so that a TxnRef can hand them out freely
+    static class Sums {
+        static final Sums ZERO = new Sums(0.0, 0.0, 0);
+
+        final double sumx, sumy;
+        final int count;
+
+        Sums(double sumx, double sumy, int count) {
+            this.sumx = sumx;
+            this.sumy = sumy;
+            this.count = count;
+        }
+
+        Sums plus(Point p) {
+            return new Sums(sumx + p.x, sumy + p.y, count + 1);
+        }
+    }
+}
+
+// A small software transactional memory in the style of TL2 (Dice,
+// Shalev and Shavit 2006).  A TxnRef holds an immutable value stamped
+// with the global clock value of the transaction that wrote it, and
+// has an owner lock held only while a transaction commits.  A Txn
+// reads at the clock value current when it started, and aborts as soon
+// as it reads a ref written or being written since; writes are
+// buffered.  To commit, a Txn locks the refs it writes in a fixed
+// order, failing if one is locked already, takes a new clock value,
+// validates that nothing it read has changed, and then publishes its
+// writes with the new stamp.  Stm.atomic reruns an aborted transaction
+// until it commits, and counts commits and aborts.
+
+class Stm {
+    private static final AtomicLong clock = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong(), aborts = new AtomicLong();
+
+    public <T> T atomic(Function<Txn, T> body) {
+        for (int attempt = 0; ; attempt++) {
+            Txn txn = new Txn(clock.get());
+            try {
+                T result = body.apply(txn);
+                txn.commit();
+                commits.incrementAndGet();
+                return result;
+            } catch (Txn.Abort abort) {
+                aborts.incrementAndGet();
+                if (attempt > 8)
+                    Thread.yield();
+            }
+        }
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public long getAborts() {
+        return aborts.get();
+    }
+
+    static long tick() {
+        return clock.incrementAndGet();
+    }
+}
+
+class TxnRef<T> {
+    private static final AtomicLong nextId = new AtomicLong();
+
+    final long id = nextId.getAndIncrement();      // Lock order
+    final ReentrantLock owner = new ReentrantLock();
+    private volatile Stamped<T> current;
+
+    public TxnRef(T value) {
+        current = new Stamped<>(value, 0);
+    }
+
+    // Non-transactional access, for use when no transaction can run
+    public T get() {
+        return current.value;
+    }
+
+    public void set(T value) {
+        current = new Stamped<>(value, Stm.tick());
+    }
+
+    Stamped<T> stamped() {
+        return current;
+    }
+
+    void publish(Object value, long stamp) {
+        @SuppressWarnings("unchecked")
+        T v = (T) value;
+        current = new Stamped<>(v, stamp);
+    }
+
+    static class Stamped<T> {
+        final T value;
+        final long stamp;
+
+        Stamped(T value, long stamp) {
+            this.value = value;
+            this.stamp = stamp;
+        }
+    }
+}
+
+class Txn {
+    // Thrown to abandon the transaction; preallocated as it is control flow
+    @SuppressWarnings("serial")
+    static class Abort extends RuntimeException {
+        static final Abort INSTANCE = new Abort();
+
+        private Abort() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final long readStamp;
+    private final Map<TxnRef<?>, Long> reads = new HashMap<>();
+    private final Map<TxnRef<?>, Object> writes = new HashMap<>();
+
+    Txn(long readStamp) {
+        this.readStamp = readStamp;
+    }
+
+    public <T> T read(TxnRef<T> ref) {
+        if (writes.containsKey(ref)) {
+            @SuppressWarnings("unchecked")
+            T value = (T) writes.get(ref);
+            return value;
+        }
+        TxnRef.Stamped<T> s = ref.stamped();
+        if (s.stamp > readStamp || ref.owner.isLocked())
+            throw Abort.INSTANCE;
+        reads.put(ref, s.stamp);
+        return s.value;
+    }
+
+    public <T> void write(TxnRef<T> ref, T value) {
+        writes.put(ref, value);
+    }
+
+    void commit() {
+        List<TxnRef<?>> locked = new ArrayList<>(writes.keySet());
+        locked.sort(Comparator.comparingLong(ref -> ref.id));
+        int held = 0;
+        try {
+            for (TxnRef<?> ref : locked) {
+                if (!ref.owner.tryLock())
+                    throw Abort.INSTANCE;
+                held++;
+            }
+            long writeStamp = Stm.tick();
+            for (Map.Entry<TxnRef<?>, Long> read : reads.entrySet()) {
+                TxnRef<?> ref = read.getKey();
+                if (ref.stamped().stamp != read.getValue()
+                    || ref.owner.isLocked() && !ref.owner.isHeldByCurrentThread())
+                    throw Abort.INSTANCE;
+            }
+            for (TxnRef<?> ref : locked)
+                ref.publish(writes.get(ref), writeStamp);
+        } finally {
+            for (int i = 0; i < held; i++)
+                locked.get(i).owner.unlock();
+        }
+    }
+}
+
+// ----------------------------------------------------------------------
+
+class KMeans2F implements InstrumentedKMeans {
+    // Sequential version 2, fused.  Data representation as in KMeans2,
+    // but the assignment step and the update step are done in the same
+    // pass: as soon as the nearest cluster of a point is found, the
+    // point is added to that cluster's sums.  The means used for the
+    // search do not change until computeNewMean, so this gives the same
+    // clusters as KMeans2 while reading the points array only once per
+    // iteration, and the myCluster array is not needed at all.  If a
+    // CentroidIndex factory is given, the nearest cluster is found by
+    // querying an index built over the means in each iteration instead
+    // of by scanning all the clusters.
+
+    private final Point[] points;
+    private final int k;
+    private final Supplier<CentroidIndex> indexFactory;
+    private KMeans2.Cluster[] clusters;
+    private int iterations;
+    private KMeansListener listener;
+
+    public KMeans2F(Point[] points, int k) {
+        this(points, k, null);
+    }
+
+    public KMeans2F(Point[] points, int k, Supplier<CentroidIndex> indexFactory) {
+        this.points = points;
+        this.k = k;
+        this.indexFactory = indexFactory;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final KMeans2.Cluster[] clusters =
+            GenerateData.initialClusters(points, initialPoints, KMeans2.Cluster::new, KMeans2.Cluster[]::new);
+        final CentroidIndex index = indexFactory == null ? null : indexFactory.get();
+        final IterationStats stats = listener == null ? null : new IterationStats(0);
+        boolean converged = false;
+        while (!converged) {
+            iterations++;
+            if (stats != null)
+                stats.startAssign(iterations, false);
+            for (KMeans2.Cluster c : clusters)
+                c.resetMean();
+            // Fused assignment and accumulation step
+            if (index != null) {
+                index.build(clusters);
+                for (Point p : points)
+                    clusters[index.nearest(p)].addToMean(p);
+            } else for (Point p : points) {
+                KMeans2.Cluster best = null;
+                double bestDist = Double.POSITIVE_INFINITY;
+                for (KMeans2.Cluster c : clusters) {
+                    double dist = p.sqrDist(c.getMean());
+                    if (dist < bestDist) {
+                        bestDist = dist;
+                        best = c;
+                    }
+                }
+                best.addToMean(p);
+            }
+            if (stats != null)
+                stats.startUpdate();
+            converged = true;
+            for (KMeans2.Cluster c : clusters) {
+                Point oldMean = c.getMean();
+                converged &= c.computeNewMean();
+                if (stats != null)
+                    c.report(stats, oldMean);
+            }
+            if (stats != null) {
+                stats.endUpdate();
+                listener.iteration(stats);
+            }
+        }
+        this.clusters = clusters;
+    }
+
+    public void setListener(KMeansListener listener) {
+        this.listener = listener;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        for (KMeans2.Cluster c : clusters)
+            System.out.println(c);
+        System.out.printf("Used %d iterations%n", iterations);
+    }
+}
+
+// -- PARALLEL -------------------
+
+class KMeans2FP implements InstrumentedKMeans {
+    // Parallel version 2, fused.  Each task searches the nearest
+    // cluster of each point in its range and immediately adds the point
+    // to its own partial sums for that cluster, so each iteration is a
+    // single pass over the points.  The partial sums are then merged
+    // into the Clusters, so no locks are taken.  As in KMeans2F, a
+    // CentroidIndex may be used for the nearest cluster search; it is
+    // built once per iteration and then queried by all tasks.
+
+    private final Point[] points;
+    private final int k;
+    private final int taskCount;
+    private final Supplier<CentroidIndex> indexFactory;
+    private Cluster[] clusters;
+    private int iterations;
+    private KMeansListener listener;
+
+    public KMeans2FP(Point[] points, int k) {
+        this(points, k, 8);
+    }
+
+    public KMeans2FP(Point[] points, int k, int taskCount) {
+        this(points, k, taskCount, null);
+    }
+
+    public KMeans2FP(Point[] points, int k, int taskCount, Supplier<CentroidIndex> indexFactory) {
+        this.points = points;
+        this.k = k;
+        this.taskCount = taskCount;
+        this.indexFactory = indexFactory;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final Cluster[] clusters = GenerateData.initialClusters(points, initialPoints, Cluster::new, Cluster[]::new);
+        final int k = clusters.length;
+        final double[][] sumx = new double[taskCount][k], sumy = new double[taskCount][k];
+        final int[][] count = new int[taskCount][k];
+        final CentroidIndex index = indexFactory == null ? null : indexFactory.get();
+        final IterationStats stats = listener == null ? null : new IterationStats(taskCount);
+        ExecutorService executor = Executors.newWorkStealingPool();
+        try {
+            boolean converged = false;
+            while (!converged) {
+                iterations++;
+                if (stats != null)
+                    stats.startAssign(iterations, false);
+                if (index != null)
+                    index.build(clusters);
+                // Fused assignment and accumulation step
+                KMeans4P.parallelFor(executor, taskCount, points.length, (t, from, to) -> {
+                    long start = stats == null ? 0 : System.nanoTime();
+                    final double[] sx = sumx[t], sy = sumy[t];
+                    final int[] cnt = count[t];
+                    Arrays.fill(sx, 0.0);
+                    Arrays.fill(sy, 0.0);
+                    Arrays.fill(cnt, 0);
+                    for (int pi = from; pi < to; pi++) {
+                        Point p = points[pi];
+                        int best = 0;
+                        if (index != null)
+                            best = index.nearest(p);
+                        else {
+                            double bestDist = Double.POSITIVE_INFINITY;
+                            for (int ci = 0; ci < k; ci++) {
+                                double dist = p.sqrDist(clusters[ci].mean);
+                                if (dist < bestDist) {
+                                    bestDist = dist;
+                                    best = ci;
+                                }
+                            }
+                        }
+                        sx[best] += p.x;
+                        sy[best] += p.y;
+                        cnt[best]++;
+                    }
+                    if (stats != null)
+                        stats.addTaskNanos(t, System.nanoTime() - start);
+                });
+                if (stats != null)
+                    stats.startUpdate();
+                // Update step: merge the partial sums and recompute means
+                KMeans4P.reduce(sumx, sumy, count);
+                converged = true;
+                for (int ci = 0; ci < k; ci++) {
+                    Point oldMean = clusters[ci].mean;
+                    converged &= clusters[ci].computeNewMean(sumx[0][ci], sumy[0][ci], count[0][ci]);
+                    if (stats == null)
+                        continue;
+                    if (count[0][ci] == 0)
+                        stats.addEmpty();
+                    else
+                        stats.shift(oldMean.x, oldMean.y, clusters[ci].mean.x, clusters[ci].mean.y);
+                }
+                if (stats != null) {
+                    stats.endUpdate();
+                    listener.iteration(stats);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        this.clusters = clusters;
+    }
+
+    public void setListener(KMeansListener listener) {
+        this.listener = listener;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        for (Cluster c : clusters)
+            System.out.println(c);
+        System.out.printf("Used %d iterations%n", iterations);
+    }
+
+    static class Cluster extends ClusterBase {
+        private Point mean;
+
+        public Cluster(Point mean) {
+            this.mean = mean;
+        }
+
+        // Recompute mean from the given sums, return true if it stays
+        // almost the same, else false.  An empty cluster keeps its old mean.
+        public boolean computeNewMean(double sumx, double sumy, int count) {
+            if (count == 0)
+                return true;
+            Point oldMean = this.mean;
+            this.mean = new Point(sumx / count, sumy / count);
+            return oldMean.almostEquals(this.mean);
+        }
+
+        @Override
+        public Point getMean() {
+            return mean;
+        }
+    }
+}
+
+// ----------------------------------------------------------------------
+
+// Nearest mean search structures for the assignment step.  An index is
+// built over the current means of the clusters, after which nearest
+// may be called concurrently by several threads until the next build.
+
+interface CentroidIndex {
+    void build(ClusterBase[] clusters);
+
+    // The index in clusters of the cluster whose mean is nearest to p
+    int nearest(Point p);
+}
+
+// Linear scan of all means, O(k) per query; the baseline
+
+class ScanIndex implements CentroidIndex {
+    private double[] mx, my;
+
+    public void build(ClusterBase[] clusters) {
+        if (mx == null || mx.length != clusters.length) {
+            mx = new double[clusters.length];
+            my = new double[clusters.length];
+        }
+        for (int ci = 0; ci < clusters.length; ci++) {
+            mx[ci] = clusters[ci].getMean().x;
+            my[ci] = clusters[ci].getMean().y;
+        }
+    }
+
+    public int nearest(Point p) {
+        return KMeans4.nearest(p.x, p.y, mx, my);
+    }
+}
+
+// A balanced 2D k-d tree over the means, stored implicitly in arrays:
+// the subtree over positions lo..hi-1 has its splitting mean at position
+// mid = (lo+hi)/2, the means at positions lo..mid-1 are on its low side
+// and those at positions mid+1..hi-1 on its high side, splitting on x at
+// even depths and on y at odd depths.  A query descends to the side of
+// the query point first and visits the other side only if the splitting
+// line is nearer than the best mean found so far, so for well spread
+// means a query takes O(log k) rather than O(k) distance computations.
+
+class KdTreeIndex implements CentroidIndex {
+    private int[] ids;          // ids[i] is the cluster index of the mean at position i
+    private double[] tx, ty;    // tx[i], ty[i] are the coordinates of the mean at position i
+
+    public void build(ClusterBase[] clusters) {
+        reset(clusters.length);
+        for (int ci = 0; ci < clusters.length; ci++) {
+            Point mean = clusters[ci].getMean();
+            tx[ci] = mean.x;
+            ty[ci] = mean.y;
+        }
+        build(0, clusters.length, 0);
+    }
+
+    public void build(Point[] means) {
+        reset(means.length);
+        for (int ci = 0; ci < means.length; ci++) {
+            tx[ci] = means[ci].x;
+            ty[ci] = means[ci].y;
+        }
+        build(0, means.length, 0);
+    }
+
+    // Make room for k means, reusing the arrays when k is unchanged
+    private void reset(int k) {
+        if (ids == null || ids.length != k) {
+            ids = new int[k];
+            tx = new double[k];
+            ty = new double[k];
+        }
+        for (int ci = 0; ci < k; ci++)
+            ids[ci] = ci;
+    }
+
+    private void build(int lo, int hi, int depth) {
+        if (hi - lo <= 1)
+            return;
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, depth % 2 == 0 ? tx : ty);
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    // Quickselect: permute positions lo..hi so that position m holds the
+    // mean with the m'th smallest key, smaller keys before, larger after
+    private void select(int lo, int hi, int m, double[] key) {
+        while (lo < hi) {
+            double pivot = key[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (key[i] < pivot) i++;
+                while (key[j] > pivot) j--;
+                if (i <= j)
+                    swap(i++, j--);
+            }
+            if (m <= j)
+                hi = j;
+            else if (m >= i)
+                lo = i;
+            else
+                return;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int id = ids[i]; ids[i] = ids[j]; ids[j] = id;
+        double x = tx[i]; tx[i] = tx[j]; tx[j] = x;
+        double y = ty[i]; ty[i] = ty[j]; ty[j] = y;
+    }
+
+    public int nearest(Point p) {
+        return ids[nearest(p.x, p.y, 0, ids.length, 0, -1)];
+    }
+
+    // The position of the mean nearest to x, y among positions lo..hi-1
+    // and position best, the nearest found so far (-1 if none).  The
+    // search state is passed as arguments and results, so a query
+    // allocates nothing.
+    private int nearest(double x, double y, int lo, int hi, int depth, int best) {
+        if (lo >= hi)
+            return best;
+        int mid = (lo + hi) >>> 1;
+        double dx = x - tx[mid], dy = y - ty[mid];
+        double dist = dx * dx + dy * dy;
+        if (best < 0) {
+            best = mid;
+        } else {
+            double bestDist = dist(x, y, best);
+            if (dist < bestDist || dist == bestDist && ids[mid] < ids[best])
+                best = mid;
+        }
+        double delta = depth % 2 == 0 ? dx : dy;
+        if (delta < 0) {
+            best = nearest(x, y, lo, mid, depth + 1, best);
+            if (delta * delta <= dist(x, y, best))
+                best = nearest(x, y, mid + 1, hi, depth + 1, best);
+        } else {
+            best = nearest(x, y, mid + 1, hi, depth + 1, best);
+            if (delta * delta <= dist(x, y, best))
+                best = nearest(x, y, lo, mid, depth + 1, best);
+        }
+        return best;
+    }
+
+    private double dist(double x, double y, int pos) {
+        double dx = x - tx[pos], dy = y - ty[pos];
+        return dx * dx + dy * dy;
+    }
+}
+
+// ----------------------------------------------------------------------
+
+class KMeans3 implements InstrumentedKMeans {
+    // Stream-based version. Representation (A2): Immutable Clusters of
+    // immutable Points.
+
+    private final Point[] points;
+    private final int k;
+    private Cluster[] clusters;
+    private int iterations;
+    private KMeansListener listener;
+
+    public KMeans3(Point[] points, int k) {
+        this.points = points;
+        this.k = k;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        Cluster[] clusters = GenerateData.initialClusters(points, initialPoints, Cluster::new, Cluster[]::new);
+        final IterationStats stats = listener == null ? null : new IterationStats(0);
+        boolean converged = false;
+        while (!converged) {
+            iterations++;
+            if (stats != null)
+                stats.startAssign(iterations, false);
+            final int before = clusters.length;
+            { // Assignment step: put each point in exactly one cluster
+                final Cluster[] clustersLocal = clusters; // For capture in lambda
+                Map<Cluster, List<Point>> groups =
+                    Arrays.stream(points)
+                          .collect(Collectors.groupingBy(p -> nearest(p, clustersLocal)));
+                clusters = groups.entrySet().stream()
+                                 .map(kv -> new Cluster(kv.getKey().getMean(), kv.getValue()))
+                                 .toArray(Cluster[]::new);
+            }
+            if (stats != null)
+                stats.startUpdate();
+            { // Update step: recompute mean of each cluster
+                Cluster[] newClusters = Arrays.stream(clusters)
+                                              .map(Cluster::computeMean)
+                                              .toArray(Cluster[]::new);
+                converged = Arrays.equals(clusters, newClusters);
+                if (stats != null)
+                    report(stats, before, clusters, newClusters);
+                clusters = newClusters;
+            }
+            if (stats != null) {
+                stats.endUpdate();
+                listener.iteration(stats);
+            }
+        }
+        this.clusters = clusters;
+    }
+
+    // Record the shift of each cluster's mean; clusters that got no
+    // points are gone from the new array
+    static void report(IterationStats stats, int before, ClusterBase[] clusters, ClusterBase[] newClusters) {
+        for (int i = clusters.length; i < before; i++)
+            stats.addEmpty();
+        for (int i = 0; i < clusters.length; i++) {
+            Point oldMean = clusters[i].getMean(), newMean = newClusters[i].getMean();
+            stats.shift(oldMean.x, oldMean.y, newMean.x, newMean.y);
+        }
+    }
+
+    public void setListener(KMeansListener listener) {
+        this.listener = listener;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        for (Cluster c : clusters)
+            System.out.println(c);
+        System.out.printf("Used %d iterations%n", iterations);
+    }
+
+    static class Cluster extends ClusterBase {
+        private final List<Point> points;
+        private final Point mean;
+
+        public Cluster(Point mean) {
+            this(mean, new ArrayList<>());
+        }
+
+        public Cluster(Point mean, List<Point> points) {
+            this.mean = mean;
+            this.points = Collections.unmodifiableList(points);
+        }
+
+        @Override
+        public Point getMean() {
+            return mean;
+        }
+
+        public Cluster computeMean() {
+            double sumx = points.stream().mapToDouble(p -> p.x).sum(),
+                    sumy = points.stream().mapToDouble(p -> p.y).sum();
+            Point newMean = new Point(sumx / points.size(), sumy / points.size());
+            return new Cluster(newMean, points);
+        }
+    }
+
+    static Cluster nearest(Point p, Cluster[] clusters) {
+        return Arrays.stream(clusters)
+                     .min(Comparator.comparingDouble(c -> p.sqrDist(c.mean)))
+                     .get();
+    }
+}
+
+// -- PARALLEL -------------------
+
+class KMeans3P implements InstrumentedKMeans {
+    // Parallel stream-based version.  Immutable Clusters hold only a
+    // mean.  The points are grouped by the index of their nearest cluster
+    // using a collector that reduces each group to its sums rather than
+    // to a List<Point>.  This uses groupingBy on a parallel stream, so
+    // that each thread groups into its own map and the maps are merged
+    // by combining Sums; groupingByConcurrent with a non-concurrent
+    // downstream collector would instead lock the shared Sums of a
+    // cluster for every single point.  The stream's tasks are not
+    // visible here, so a listener gets no per-task times.
+
+    private final Point[] points;
+    private final int k;
+    private Cluster[] clusters;
+    private int iterations;
+    private KMeansListener listener;
+
+    public KMeans3P(Point[] points, int k) {
+        this.points = points;
+        this.k = k;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        Cluster[] clusters = GenerateData.initialClusters(points, initialPoints, Cluster::new, Cluster[]::new);
+        final IterationStats stats = listener == null ? null : new IterationStats(0);
+        boolean converged = false;
+        while (!converged) {
+            iterations++;
+            if (stats != null)
+                stats.startAssign(iterations, false);
+            Map<Integer, Sums> groups;
+            { // Assignment step: sum the points nearest to each cluster
+                final Cluster[] clustersLocal = clusters; // For capture in lambda
+                groups = Arrays.stream(points).parallel()
+                               .collect(Collectors.groupingBy(p -> nearestIndex(p, clustersLocal), Sums.summing()));
+            }
+            if (stats != null)
+                stats.startUpdate();
+            { // Update step: recompute mean of each non-empty cluster
+                Cluster[] newClusters = IntStream.range(0, clusters.length)
+                                                 .filter(groups::containsKey)
+                                                 .mapToObj(ci -> new Cluster(groups.get(ci).mean()))
+                                                 .toArray(Cluster[]::new);
+                converged = Arrays.equals(clusters, newClusters);
+                if (stats != null)
+                    for (int ci = 0, i = 0; ci < clusters.length; ci++)
+                        if (groups.containsKey(ci)) {
+                            Point oldMean = clusters[ci].mean, newMean = newClusters[i++].mean;
+                            stats.shift(oldMean.x, oldMean.y, newMean.x, newMean.y);
+                        } else
+                            stats.addEmpty();
+                clusters = newClusters;
+            }
+            if (stats != null) {
+                stats.endUpdate();
+                listener.iteration(stats);
+            }
+        }
+        this.clusters = clusters;
+    }
+
+    public void setListener(KMeansListener listener) {
+        this.listener = listener;
+    }
+
+    static int nearestIndex(Point p, Cluster[] clusters) {
+        int best = 0;
+        double bestDist = Double.POSITIVE_INFINITY;
+        for (int ci = 0; ci < clusters.length; ci++) {
+            double dist = p.sqrDist(clusters[ci].mean);
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = ci;
+            }
+        }
+        return best;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        for (Cluster c : clusters)
+            System.out.println(c);
+        System.out.printf("Used %d iterations%n", iterations);
+    }
+
+    static class Cluster extends ClusterBase {
+        private final Point mean;
+
+        public Cluster(Point mean) {
+            this.mean = mean;
+        }
+
+        @Override
+        public Point getMean() {
+            return mean;
+        }
+    }
+
+    // Mutable result container for summing a group of Points
+    static class Sums {
+        private double sumx, sumy;
+        private int count;
+
+        public void add(Point p) {
+            sumx += p.x;
+            sumy += p.y;
+            count++;
+        }
+
+        public Sums combine(Sums that) {
+            sumx += that.sumx;
+            sumy += that.sumy;
+            count += that.count;
+            return this;
+        }
+
+        public Point mean() {
+            return new Point(sumx / count, sumy / count);
+        }
+
+        public static Collector<Point, Sums, Sums> summing() {
+            return Collector.of(Sums::new, Sums::add, Sums::combine);
+        }
+    }
+}
+
+// ----------------------------------------------------------------------
+
+// When to stop iterating.  The default, like the other engines, stops
+// when no mean moves more than Point.almostEquals allows.  In addition
+// a policy may stop when fewer than a fraction of the points changed
+// cluster, when no mean moved farther than a tolerance, or after a
+// number of iterations or an amount of time.  In any case an iteration
+// in which no point changed cluster is the last one, and its update
+// step is skipped since the sums and hence the means would not change.
+
+class Convergence {
+    private final double changedFraction, shiftTolerance;
+    private final int maxIterations;
+    private final long maxNanos;
+
+    public Convergence() {
+        this(0.0, 0.0, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    private Convergence(double changedFraction, double shiftTolerance, int maxIterations, long maxNanos) {
+        this.changedFraction = changedFraction;
+        this.shiftTolerance = shiftTolerance;
+        this.maxIterations = maxIterations;
+        this.maxNanos = maxNanos;
+    }
+
+    // Stop when fewer than fraction of the points changed cluster
+    public Convergence whenChangedBelow(double fraction) {
+        return new Convergence(fraction, shiftTolerance, maxIterations, maxNanos);
+    }
+
+    // Stop when no mean moved farther than tolerance
+    public Convergence whenShiftBelow(double tolerance) {
+        return new Convergence(changedFraction, tolerance, maxIterations, maxNanos);
+    }
+
+    public Convergence maxIterations(int iterations) {
+        return new Convergence(changedFraction, shiftTolerance, iterations, maxNanos);
+    }
+
+    public Convergence maxMillis(long millis) {
+        return new Convergence(changedFraction, shiftTolerance, maxIterations, millis * 1_000_000);
+    }
+
+    // Start checking a run of findClusters over n points
+    public Check start(int n) {
+        return new Check(n);
+    }
+
+    class Check {
+        private final int n;
+        private final long startNanos = System.nanoTime();
+
+        private Check(int n) {
+            this.n = n;
+        }
+
+        // Called after an assignment step in which changed points changed
+        // cluster; true if the run is over without an update step
+        public boolean unchanged(int changed) {
+            return changed == 0;
+        }
+
+        // Update step: recompute the means from the sums, keeping the old
+        // mean of an empty cluster, and return true if the run is over
+        public boolean update(double[] mx, double[] my, double[] sumx, double[] sumy, int[] count,
+                              int changed, int iteration) {
+            boolean almostEqual = true;
+            double maxSqrShift = 0.0;
+            for (int ci = 0; ci < mx.length; ci++) {
+                if (count[ci] == 0)
+                    continue;
+                double newx = sumx[ci] / count[ci], newy = sumy[ci] / count[ci];
+                double dx = newx - mx[ci], dy = newy - my[ci];
+                almostEqual &= Point.almostEquals(mx[ci], newx) && Point.almostEquals(my[ci], newy);
+                maxSqrShift = Math.max(maxSqrShift, dx * dx + dy * dy);
+                mx[ci] = newx;
+                my[ci] = newy;
+            }
+            return almostEqual
+                || changed < changedFraction * n
+                || maxSqrShift <= shiftTolerance * shiftTolerance
+                || iteration >= maxIterations
+                || System.nanoTime() - startNanos >= maxNanos;
+        }
+    }
+}
+
+// ----------------------------------------------------------------------
+
+class KMeans4 implements InstrumentedKMeans {
+    // Sequential version 4. Data representation: structure of arrays.
+    // The point coordinates are copied once into flat arrays xs and ys,
+    // the cluster means live in flat arrays mx and my, and a same-index
+    // array myCluster holds the index of the cluster to which each
+    // point belongs, so that point pi belongs to cluster myCluster[pi].
+    // Neither the assignment step nor the update step allocates.
+
+    private final double[] xs, ys;
+    private final int k;
+    private final Convergence convergence;
+    private double[] mx, my;
+    private int iterations;
+    private KMeansListener listener;
+
+    public KMeans4(Point[] points, int k) {
+        this(points, k, new Convergence());
+    }
+
+    public KMeans4(Point[] points, int k, Convergence convergence) {
+        this.xs = new double[points.length];
+        this.ys = new double[points.length];
+        for (int pi = 0; pi < points.length; pi++) {
+            xs[pi] = points[pi].x;
+            ys[pi] = points[pi].y;
+        }
+        this.k = k;
+        this.convergence = convergence;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final int n = xs.length, k = initialPoints.length;
+        final double[] mx = new double[k], my = new double[k];
+        final double[] sumx = new double[k], sumy = new double[k];
+        final int[] count = new int[k];
+        final int[] myCluster = new int[n];
+        for (int ci = 0; ci < k; ci++) {
+            mx[ci] = xs[initialPoints[ci]];
+            my[ci] = ys[initialPoints[ci]];
+        }
+        final IterationStats stats = listener == null ? null : new IterationStats(0);
+        final double[] oldx = new double[k], oldy = new double[k];
+        Arrays.fill(myCluster, -1);
+        final Convergence.Check check = convergence.start(n);
+        boolean converged = false;
+        while (!converged) {
+            iterations++;
+            if (stats != null)
+                stats.startAssign(iterations, true);
+            int changed = 0;
+            {
+                // Assignment step: put each point in exactly one cluster
+                for (int pi = 0; pi < n; pi++) {
+                    int ci = nearest(xs[pi], ys[pi], mx, my);
+                    if (ci != myCluster[pi])
+                        changed++;
+                    myCluster[pi] = ci;
+                }
+                if (stats != null) {
+                    stats.changed = changed;
+                    stats.startUpdate();
+                    System.arraycopy(mx, 0, oldx, 0, k);
+                    System.arraycopy(my, 0, oldy, 0, k);
+                }
+            }
+            if (check.unchanged(changed))
+                converged = true;
+            else {
+                // Update step: recompute mean of each cluster
+                Arrays.fill(sumx, 0.0);
+                Arrays.fill(sumy, 0.0);
+                Arrays.fill(count, 0);
+                for (int pi = 0; pi < n; pi++) {
+                    int ci = myCluster[pi];
+                    sumx[ci] += xs[pi];
+                    sumy[ci] += ys[pi];
+                    count[ci]++;
+                }
+                converged = check.update(mx, my, sumx, sumy, count, changed, iterations);
+            }
+            if (stats != null) {
+                report(stats, oldx, oldy, mx, my, count);
+                listener.iteration(stats);
+            }
+        }
+        this.mx = mx;
+        this.my = my;
+    }
+
+    // Index of the mean nearest to (x, y), computing one distance per mean
+    static int nearest(double x, double y, double[] mx, double[] my) {
+        int best = 0;
+        double bestDist = Double.POSITIVE_INFINITY;
+        for (int ci = 0; ci < mx.length; ci++) {
+            double dx = x - mx[ci], dy = y - my[ci];
+            double dist = dx * dx + dy * dy;
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = ci;
+            }
+        }
+        return best;
+    }
+
+    // Recompute the means from the sums, return true if they all stay
+    // almost the same, else false.  An empty cluster keeps its old mean.
+    static boolean updateMeans(double[] mx, double[] my, double[] sumx, double[] sumy, int[] count) {
+        boolean converged = true;
+        for (int ci = 0; ci < mx.length; ci++) {
+            if (count[ci] == 0)
+                continue;
+            double newx = sumx[ci] / count[ci], newy = sumy[ci] / count[ci];
+            converged &= Point.almostEquals(mx[ci], newx) && Point.almostEquals(my[ci], newy);
+            mx[ci] = newx;
+            my[ci] = newy;
+        }
+        return converged;
+    }
+
+    public void setListener(KMeansListener listener) {
+        this.listener = listener;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    // Record the mean shifts and empty clusters of an update step
+    static void report(IterationStats stats, double[] oldx, double[] oldy,
+                       double[] mx, double[] my, int[] count) {
+        for (int ci = 0; ci < mx.length; ci++)
+            if (count[ci] == 0)
+                stats.addEmpty();
+            else
+                stats.shift(oldx[ci], oldy[ci], mx[ci], my[ci]);
+        stats.endUpdate();
+    }
+
+    public void print() {
+        print(mx, my, iterations);
+    }
+
+    static void print(double[] mx, double[] my, int iterations) {
+        for (int ci = 0; ci < mx.length; ci++)
+            System.out.printf("mean = %s%n", new Point(mx[ci], my[ci]));
+        System.out.printf("Used %d iterations%n", iterations);
+    }
+}
+
+// -- PARALLEL -------------------
+
+class KMeans4P implements InstrumentedKMeans {
+    // Parallel version 4. Data representation as in KMeans4.  The points
+    // are split into taskCount ranges.  In the update step each task
+    // sums its own range into its own partial sum arrays sumx[t],
+    // sumy[t] and count[t], and the partial sums are then merged by a
+    // reduction, so no locks are taken on the clusters.
+
+    private final double[] xs, ys;
+    private final int k;
+    private final int taskCount;
+    private final Convergence convergence;
+    private double[] mx, my;
+    private int iterations;
+    private KMeansListener listener;
+
+    public KMeans4P(Point[] points, int k) {
+        this(points, k, 8);
+    }
+
+    public KMeans4P(Point[] points, int k, int taskCount) {
+        this(points, k, taskCount, new Convergence());
+    }
+
+    public KMeans4P(Point[] points, int k, int taskCount, Convergence convergence) {
+        this.xs = new double[points.length];
+        this.ys = new double[points.length];
+        for (int pi = 0; pi < points.length; pi++) {
+            xs[pi] = points[pi].x;
+            ys[pi] = points[pi].y;
+        }
+        this.k = k;
+        this.taskCount = taskCount;
+        this.convergence = convergence;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final int n = xs.length, k = initialPoints.length;
+        final double[] mx = new double[k], my = new double[k];
+        final double[][] sumx = new double[taskCount][k], sumy = new double[taskCount][k];
+        final int[][] count = new int[taskCount][k];
+        final int[] myCluster = new int[n];
+        final int[] changed = new int[taskCount];
+        for (int ci = 0; ci < k; ci++) {
+            mx[ci] = xs[initialPoints[ci]];
+            my[ci] = ys[initialPoints[ci]];
+        }
+        final IterationStats stats = listener == null ? null : new IterationStats(taskCount);
+        final double[] oldx = new double[k], oldy = new double[k];
+        Arrays.fill(myCluster, -1);
+        final Convergence.Check check = convergence.start(n);
+        ExecutorService executor = Executors.newWorkStealingPool();
+        try {
+            boolean converged = false;
+            while (!converged) {
+                iterations++;
+                if (stats != null)
+                    stats.startAssign(iterations, true);
+                int totalChanged = 0;
+                {
+                    // Assignment step: put each point in exactly one
+                    // cluster, counting the points that change cluster
+                    parallelFor(executor, taskCount, n, (t, from, to) -> {
+                        long start = stats == null ? 0 : System.nanoTime();
+                        int taskChanged = 0;
+                        for (int pi = from; pi < to; pi++) {
+                            int ci = KMeans4.nearest(xs[pi], ys[pi], mx, my);
+                            if (ci != myCluster[pi])
+                                taskChanged++;
+                            myCluster[pi] = ci;
+                        }
+                        changed[t] = taskChanged;
+                        if (stats != null)
+                            stats.addTaskNanos(t, System.nanoTime() - start);
+                    });
+                    for (int t = 0; t < taskCount; t++)
+                        totalChanged += changed[t];
+                }
+                if (stats != null) {
+                    stats.changed = totalChanged;
+                    stats.startUpdate();
+                    System.arraycopy(mx, 0, oldx, 0, k);
+                    System.arraycopy(my, 0, oldy, 0, k);
+                }
+                if (check.unchanged(totalChanged))
+                    converged = true;
+                else {
+                    // Update step: each task sums its own range, then reduce
+                    parallelFor(executor, taskCount, n, (t, from, to) -> {
+                        long start = stats == null ? 0 : System.nanoTime();
+                        final double[] sx = sumx[t], sy = sumy[t];
+                        final int[] cnt = count[t];
+                        Arrays.fill(sx, 0.0);
+                        Arrays.fill(sy, 0.0);
+                        Arrays.fill(cnt, 0);
+                        for (int pi = from; pi < to; pi++) {
+                            int ci = myCluster[pi];
+                            sx[ci] += xs[pi];
+                            sy[ci] += ys[pi];
+                            cnt[ci]++;
+                        }
+                        if (stats != null)
+                            stats.addTaskNanos(t, System.nanoTime() - start);
+                    });
+                    reduce(sumx, sumy, count);
+                    converged = check.update(mx, my, sumx[0], sumy[0], count[0], totalChanged, iterations);
+                }
+                if (stats != null) {
+                    KMeans4.report(stats, oldx, oldy, mx, my, count[0]);
+                    listener.iteration(stats);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        this.mx = mx;
+        this.my = my;
+    }
+
+    // Add the partial sums of tasks 1..taskCount-1 into those of task 0
+    static void reduce(double[][] sumx, double[][] sumy, int[][] count) {
+        for (int t = 1; t < sumx.length; t++)
+            for (int ci = 0; ci < sumx[0].length; ci++) {
+                sumx[0][ci] += sumx[t][ci];
+                sumy[0][ci] += sumy[t][ci];
+                count[0][ci] += count[t][ci];
+            }
+    }
+
+    interface RangeTask {
+        void run(int task, int from, int to);
+    }
+
+    // Split [0, n) into taskCount ranges, run body on each range in the
+    // executor, and wait for all of them to finish
+    static void parallelFor(ExecutorService executor, int taskCount, int n, RangeTask body) {
+        final int perTask = n / taskCount;
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int t = 0; t < taskCount; t++) {
+            final int task = t, from = t * perTask, to = (t + 1 == taskCount) ? n : (t + 1) * perTask;
+            tasks.add(executor.submit(() -> body.run(task, from, to)));
+        }
+        try {
+            for (Future<?> task : tasks)
+                task.get();
+        } catch (InterruptedException | ExecutionException exn) {
+            throw new RuntimeException(exn);
+        }
+    }
+
+    public void setListener(KMeansListener listener) {
+        this.listener = listener;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        KMeans4.print(mx, my, iterations);
+    }
+}
+
+// -- PARALLEL -------------------
+
+class KMeans4B implements InstrumentedKMeans {
+    // Parallel version 4 with persistent workers.  Data representation
+    // as in KMeans4.  A fixed set of workerCount workers is started once
+    // per findClusters, and worker w owns the w'th range of points for
+    // the whole run.  In each iteration a worker finds the nearest mean
+    // of each of its points and adds the point to its own partial sums,
+    // then waits at a CyclicBarrier.  The barrier action, run by the last
+    // worker to arrive, merges the partial sums, recomputes the means and
+    // decides convergence before any worker is released, so no tasks are
+    // submitted per iteration.  Each worker also counts the points of its
+    // range that changed cluster; if none did in any worker, the barrier
+    // action ends the run without an update step.  A listener is called
+    // from the barrier action, and the task times it gets are the busy
+    // times of the workers, excluding their wait at the barrier.
+
+    private final double[] xs, ys;
+    private final int k;
+    private final int workerCount;
+    private final Convergence convergence;
+    private double[] mx, my;
+    private int iterations;
+    private KMeansListener listener;
+
+    public KMeans4B(Point[] points, int k) {
+        this(points, k, Runtime.getRuntime().availableProcessors());
+    }
+
+    public KMeans4B(Point[] points, int k, int workerCount) {
+        this(points, k, workerCount, new Convergence());
+    }
+
+    public KMeans4B(Point[] points, int k, int workerCount, Convergence convergence) {
+        this.xs = new double[points.length];
+        this.ys = new double[points.length];
+        for (int pi = 0; pi < points.length; pi++) {
+            xs[pi] = points[pi].x;
+            ys[pi] = points[pi].y;
+        }
+        this.k = k;
+        this.workerCount = workerCount;
+        this.convergence = convergence;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final int n = xs.length, k = initialPoints.length;
+        final double[] mx = new double[k], my = new double[k];
+        final double[][] sumx = new double[workerCount][k], sumy = new double[workerCount][k];
+        final int[][] count = new int[workerCount][k];
+        final int[] changed = new int[workerCount];
+        final int[] myCluster = new int[n];
+        for (int ci = 0; ci < k; ci++) {
+            mx[ci] = xs[initialPoints[ci]];
+            my[ci] = ys[initialPoints[ci]];
+        }
+        Arrays.fill(myCluster, -1);
+        final Convergence.Check check = convergence.start(n);
+        final AtomicBoolean converged = new AtomicBoolean(false);
+        final IterationStats stats = listener == null ? null : new IterationStats(workerCount);
+        final double[] oldx = new double[k], oldy = new double[k];
+        final CyclicBarrier barrier = new CyclicBarrier(workerCount, () -> {
+            // Update step, run by exactly one worker per iteration
+            iterations++;
+            int totalChanged = 0;
+            for (int w = 0; w < workerCount; w++)
+                totalChanged += changed[w];
+            if (stats != null) {
+                stats.changed = totalChanged;
+                stats.startUpdate();
+                System.arraycopy(mx, 0, oldx, 0, k);
+                System.arraycopy(my, 0, oldy, 0, k);
+            }
+            KMeans4P.reduce(sumx, sumy, count);
+            if (check.unchanged(totalChanged))
+                converged.set(true);
+            else
+                converged.set(check.update(mx, my, sumx[0], sumy[0], count[0], totalChanged, iterations));
+            if (stats != null) {
+                KMeans4.report(stats, oldx, oldy, mx, my, count[0]);
+                listener.iteration(stats);
+                if (!converged.get())
+                    stats.startAssign(iterations + 1, true);
+            }
+        });
+        if (stats != null)
+            stats.startAssign(1, true);
+        final int perWorker = n / workerCount;
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int w = 0; w < workerCount; w++) {
+                final double[] sx = sumx[w], sy = sumy[w];
+                final int[] cnt = count[w];
+                final int worker = w, from = w * perWorker, to = (w + 1 == workerCount) ? n : (w + 1) * perWorker;
+                workers.add(executor.submit(() -> {
+                    do {
+                        // Assignment step, fused with summing into own partial sums
+                        long start = stats == null ? 0 : System.nanoTime();
+                        Arrays.fill(sx, 0.0);
+                        Arrays.fill(sy, 0.0);
+                        Arrays.fill(cnt, 0);
+                        int workerChanged = 0;
+                        for (int pi = from; pi < to; pi++) {
+                            int ci = KMeans4.nearest(xs[pi], ys[pi], mx, my);
+                            if (ci != myCluster[pi])
+                                workerChanged++;
+                            myCluster[pi] = ci;
+                            sx[ci] += xs[pi];
+                            sy[ci] += ys[pi];
+                            cnt[ci]++;
+                        }
+                        changed[worker] = workerChanged;
+                        if (stats != null)
+                            stats.addTaskNanos(worker, System.nanoTime() - start);
+                        barrier.await();
+                    } while (!converged.get());
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers)
+                worker.get();
+        } catch (InterruptedException | ExecutionException exn) {
+            throw new RuntimeException(exn);
+        } finally {
+            executor.shutdown();
+        }
+        this.mx = mx;
+        this.my = my;
+    }
+
+    public void setListener(KMeansListener listener) {
+        this.listener = listener;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        KMeans4.print(mx, my, iterations);
+    }
+}
+
+// ----------------------------------------------------------------------
+
+class KMeans5 implements InstrumentedKMeans {
+    // Sequential version 5, using Hamerly's bounds to avoid distance
+    // computations.  Data representation as in KMeans4, plus for each
+    // point pi an upper bound upper[pi] on the distance to its own mean
+    // and a lower bound lower[pi] on the distance to any other mean, and
+    // for each cluster ci half the distance s[ci] to its nearest other
+    // mean.  By the triangle inequality, when upper[pi] <= max(s[ci],
+    // lower[pi]) no other mean can be nearer, so the scan over all k
+    // means is skipped.  When the means move, the bounds are loosened by
+    // the distance moved instead of being recomputed.  Distances here
+    // are real distances, not squared ones, since the bounds rely on
+    // the triangle inequality.
+
+    private final double[] xs, ys;
+    private final int k;
+    private double[] mx, my;
+    private int iterations;
+    private long[] saved;       // saved[i] distance computations avoided in iteration i+1
+    private long computed;      // total distance computations performed
+    private KMeansListener listener;
+
+    public KMeans5(Point[] points, int k) {
+        this.xs = new double[points.length];
+        this.ys = new double[points.length];
+        for (int pi = 0; pi < points.length; pi++) {
+            xs[pi] = points[pi].x;
+            ys[pi] = points[pi].y;
+        }
+        this.k = k;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final int n = xs.length, k = initialPoints.length;
+        final double[] mx = new double[k], my = new double[k];
+        final double[] sumx = new double[k], sumy = new double[k];
+        final int[] count = new int[k];
+        final int[] myCluster = new int[n];
+        final double[] upper = new double[n], lower = new double[n];
+        final double[] s = new double[k], moved = new double[k];
+        for (int ci = 0; ci < k; ci++) {
+            mx[ci] = xs[initialPoints[ci]];
+            my[ci] = ys[initialPoints[ci]];
+        }
+        // Initially no bounds are known, so force a full scan of every point
+        Arrays.fill(upper, Double.POSITIVE_INFINITY);
+        long[] saved = new long[16];
+        final IterationStats stats = listener == null ? null : new IterationStats(0);
+        boolean converged = false;
+        while (!converged) {
+            iterations++;
+            if (stats != null)
+                stats.startAssign(iterations, true);
+            long computedBefore = computed;
+            { // Half the distance from each mean to its nearest other mean
+                Arrays.fill(s, Double.POSITIVE_INFINITY);
+                for (int ci = 0; ci < k; ci++)
+                    for (int cj = ci + 1; cj < k; cj++) {
+                        double half = 0.5 * dist(mx[ci], my[ci], mx[cj], my[cj]);
+                        s[ci] = Math.min(s[ci], half);
+                        s[cj] = Math.min(s[cj], half);
+                    }
+            }
+            { // Assignment step, skipping points whose bounds prove them settled
+                Arrays.fill(sumx, 0.0);
+                Arrays.fill(sumy, 0.0);
+                Arrays.fill(count, 0);
+                for (int pi = 0; pi < n; pi++) {
+                    final double x = xs[pi], y = ys[pi];
+                    int ci = myCluster[pi];
+                    double bound = Math.max(s[ci], lower[pi]);
+                    if (upper[pi] > bound) {
+                        upper[pi] = dist(x, y, mx[ci], my[ci]);
+                        computed++;
+                        if (upper[pi] > bound) {
+                            double d1 = Double.POSITIVE_INFINITY, d2 = Double.POSITIVE_INFINITY;
+                            int best = ci;
+                            for (int cj = 0; cj < k; cj++) {
+                                double d = dist(x, y, mx[cj], my[cj]);
+                                if (d < d1) {
+                                    d2 = d1;
+                                    d1 = d;
+                                    best = cj;
+                                } else if (d < d2)
+                                    d2 = d;
+                            }
+                            computed += k;
+                            if (stats != null && best != ci)
+                                stats.changed++;
+                            myCluster[pi] = ci = best;
+                            upper[pi] = d1;
+                            lower[pi] = d2;
+                        }
+                    }
+                    sumx[ci] += x;
+                    sumy[ci] += y;
+                    count[ci]++;
+                }
+            }
+            if (stats != null)
+                stats.startUpdate();
+            { // Update step: recompute means, then loosen the bounds
+                converged = true;
+                for (int ci = 0; ci < k; ci++) {
+                    double oldx = mx[ci], oldy = my[ci];
+                    moved[ci] = 0.0;
+                    if (count[ci] > 0) {
+                        mx[ci] = sumx[ci] / count[ci];
+                        my[ci] = sumy[ci] / count[ci];
+                        moved[ci] = dist(oldx, oldy, mx[ci], my[ci]);
+                        converged &= Point.almostEquals(oldx, mx[ci]) && Point.almostEquals(oldy, my[ci]);
+                    }
+                    if (stats != null) {
+                        if (count[ci] == 0)
+                            stats.addEmpty();
+                        else
+                            stats.shift(oldx, oldy, mx[ci], my[ci]);
+                    }
+                }
+                int farthest = 0;
+                for (int ci = 0; ci < k; ci++)
+                    if (moved[ci] > moved[farthest])
+                        farthest = ci;
+                double secondFarthest = 0.0;
+                for (int ci = 0; ci < k; ci++)
+                    if (ci != farthest)
+                        secondFarthest = Math.max(secondFarthest, moved[ci]);
+                for (int pi = 0; pi < n; pi++) {
+                    int ci = myCluster[pi];
+                    upper[pi] += moved[ci];
+                    lower[pi] -= ci == farthest ? secondFarthest : moved[farthest];
+                }
+            }
+            if (stats != null) {
+                stats.endUpdate();
+                listener.iteration(stats);
+            }
+            if (iterations > saved.length)
+                saved = Arrays.copyOf(saved, 2 * saved.length);
+            saved[iterations - 1] = (long) n * k - (computed - computedBefore);
+            // System.out.printf("[%d: saved %d]", iterations, saved[iterations - 1]);
+        }
+        this.mx = mx;
+        this.my = my;
+        this.saved = Arrays.copyOf(saved, iterations);
+    }
+
+    private static double dist(double x1, double y1, double x2, double y2) {
+        double dx = x1 - x2, dy = y1 - y2;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    public void setListener(KMeansListener listener) {
+        this.listener = listener;
+    }
+
+    // Number of distance computations avoided in each iteration,
+    // compared to scanning all k means for every point
+    public long[] getSavedPerIteration() {
+        return saved;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        KMeans4.print(mx, my, iterations);
+        long total = (long) xs.length * mx.length * iterations;
+        System.out.printf("Computed %d of %d distances, saved %.1f%%%n",
+                          computed, total, 100.0 * (total - computed) / total);
+    }
+}
+
+// ----------------------------------------------------------------------
+
+class MiniBatchKMeans {
+    // Streaming mini-batch k-means (Sculley 2010).  Points are taken
+    // from an Iterator in batches of batchSize into reusable coordinate
+    // buffers; each point of a batch is assigned to its nearest mean,
+    // then each point moves its mean towards it with the per-cluster
+    // learning rate 1/count, where count is the number of points the
+    // cluster has received so far.  Memory use is O(k + batchSize),
+    // independent of the number of points consumed.  After each batch
+    // an immutable snapshot of the means is published, so getMeans may
+    // be called at any time, also from other threads, as may getConsumed.
+
+    private final int k, batchSize;
+    private final double[] mx, my;
+    private final long[] count;
+    private final double[] bx, by;
+    private final int[] bc;
+    private int seeded;
+    private long batches;
+    private volatile long consumed;             // Written by the consuming thread only
+    private volatile Point[] means = new Point[0];
+
+    public MiniBatchKMeans(int k, int batchSize) {
+        this.k = k;
+        this.batchSize = batchSize;
+        this.mx = new double[k];
+        this.my = new double[k];
+        this.count = new long[k];
+        this.bx = new double[batchSize];
+        this.by = new double[batchSize];
+        this.bc = new int[batchSize];
+    }
+
+    // An endless source of points from GenerateData, made batch by batch
+    public static Iterator<Point> randomPointSource(int batchSize) {
+        return Stream.generate(() -> GenerateData.randomPoints(batchSize))
+                     .flatMap(Arrays::stream)
+                     .iterator();
+    }
+
+    // Consume at most maxBatches batches from source, or until it is
+    // exhausted; return the number of batches consumed
+    public int run(Iterator<Point> source, int maxBatches) {
+        int b = 0;
+        while (b < maxBatches && step(source))
+            b++;
+        return b;
+    }
+
+    // Consume one batch from source; return false if it had no points
+    public boolean step(Iterator<Point> source) {
+        int size = 0;
+        while (size < batchSize && source.hasNext()) {
+            Point p = source.next();
+            if (seeded < k) { // The first k points seed the means
+                mx[seeded] = p.x;
+                my[seeded] = p.y;
+                count[seeded++] = 1;
+                consumed++;
+            } else {
+                bx[size] = p.x;
+                by[size] = p.y;
+                size++;
+            }
+        }
+        if (size == 0) {
+            publish();
+            return false;
+        }
+        // Assign the whole batch with respect to the same means ...
+        for (int bi = 0; bi < size; bi++)
+            bc[bi] = KMeans4.nearest(bx[bi], by[bi], mx, my);
+        // ... then move each point's mean towards it
+        for (int bi = 0; bi < size; bi++) {
+            int ci = bc[bi];
+            double eta = 1.0 / ++count[ci];
+            mx[ci] += eta * (bx[bi] - mx[ci]);
+            my[ci] += eta * (by[bi] - my[ci]);
+        }
+        consumed += size;
+        batches++;
+        publish();
+        return true;
+    }
+
+    private void publish() {
+        Point[] snapshot = new Point[seeded];
+        for (int ci = 0; ci < seeded; ci++)
+            snapshot[ci] = new Point(mx[ci], my[ci]);
+        means = snapshot;
+    }
+
+    // The means after the most recently completed batch
+    public Point[] getMeans() {
+        return means.clone();
+    }
+
+    public long getConsumed() {
+        return consumed;
+    }
+
+    public void print() {
+        for (Point mean : means)
+            System.out.printf("mean = %s%n", mean);
+        System.out.printf("Used %d batches, %d points%n", batches, consumed);
+    }
+}
+
+// ----------------------------------------------------------------------
+
+// A compact binary point file format, for inputs too large to generate
+// or hold as Point objects.  The file is a 16 byte header, consisting of
+// the int MAGIC, the int VERSION and the long number n of points,
+// followed by n pairs of doubles x, y, all little-endian.  A file is
+// read by memory-mapping it in chunks of at most CHUNK points (a single
+// mapping is limited to 2 GB), and each chunk is seen as a DoubleBuffer
+// holding x0, y0, x1, y1, ... so that coordinates are read directly from
+// the mapped file without creating any Point objects.
+
+class PointFile {
+    public static final int MAGIC = 0x4b4d5054, VERSION = 1, HEADER = 16;
+    public static final int CHUNK = 1 << 26;          // points per mapped chunk
+    private static final int WRITE_BATCH = 1 << 16;   // points per write
+
+    private final long n;
+    private final DoubleBuffer[] chunks;
+
+    private PointFile(long n, DoubleBuffer[] chunks) {
+        this.n = n;
+        this.chunks = chunks;
+    }
+
+    public static void write(Path path, Point[] points) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            writeHeader(ch, points.length);
+            ByteBuffer buf = ByteBuffer.allocate(16 * WRITE_BATCH).order(ByteOrder.LITTLE_ENDIAN);
+            for (Point p : points) {
+                if (!buf.hasRemaining())
+                    flush(ch, buf);
+                buf.putDouble(p.x).putDouble(p.y);
+            }
+            flush(ch, buf);
+        }
+    }
+
+    // Write n points from GenerateData without holding them all in memory
+    public static void writeRandom(Path path, long n) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            writeHeader(ch, n);
+            ByteBuffer buf = ByteBuffer.allocate(16 * WRITE_BATCH).order(ByteOrder.LITTLE_ENDIAN);
+            for (long written = 0; written < n; written += WRITE_BATCH) {
+                for (Point p : GenerateData.randomPoints((int) Math.min(WRITE_BATCH, n - written)))
+                    buf.putDouble(p.x).putDouble(p.y);
+                flush(ch, buf);
+            }
+        }
+    }
+
+    private static void writeHeader(FileChannel ch, long n) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(n);
+        flush(ch, header);
+    }
+
+    private static void flush(FileChannel ch, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            ch.write(buf);
+        buf.clear();
+    }
+
+    public static PointFile map(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, READ)) {
+            long n = readSize(ch, path);
+            DoubleBuffer[] chunks = new DoubleBuffer[(int) ((n + CHUNK - 1) / CHUNK)];
+            for (int c = 0; c < chunks.length; c++) {
+                long first = (long) c * CHUNK, count = Math.min(CHUNK, n - first);
+                chunks[c] = ch.map(FileChannel.MapMode.READ_ONLY, HEADER + 16 * first, 16 * count)
+                              .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            }
+            return new PointFile(n, chunks);
+        }
+    }
+
+    // Check the header of the file open on ch and return its point count
+    static long readSize(FileChannel ch, Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && ch.read(header, header.position()) >= 0) { }
+        header.flip();
+        if (header.remaining() < HEADER || header.getInt() != MAGIC || header.getInt() != VERSION)
+            throw new IOException("Not a point file: " + path);
+        long n = header.getLong();
+        if (ch.size() < HEADER + 16 * n)
+            throw new IOException("Truncated point file: " + path);
+        return n;
+    }
+
+    public long size() {
+        return n;
+    }
+
+    public double x(long pi) {
+        return chunks[(int) (pi / CHUNK)].get(2 * (int) (pi % CHUNK));
+    }
+
+    public double y(long pi) {
+        return chunks[(int) (pi / CHUNK)].get(2 * (int) (pi % CHUNK) + 1);
+    }
+
+    interface ChunkTask {
+        // Process points from..to-1 of the given chunk, holding
+        // coordinates x, y of point i at indexes 2*i and 2*i+1
+        void run(DoubleBuffer chunk, int from, int to);
+    }
+
+    // Apply body to the points first..last-1 of the file, chunk by chunk
+    public void forEachChunk(long first, long last, ChunkTask body) {
+        for (long pi = first; pi < last; ) {
+            int c = (int) (pi / CHUNK), from = (int) (pi % CHUNK);
+            int to = (int) Math.min(CHUNK, from + (last - pi));
+            body.run(chunks[c], from, to);
+            pi += to - from;
+        }
+    }
+}
+
+// -- PARALLEL -------------------
+
+class KMeans4M implements KMeans {
+    // Parallel version 4 over a memory-mapped PointFile.  The points are
+    // split into taskCount ranges, and in each iteration every task reads
+    // the coordinates of its range directly from the mapped buffers,
+    // finding the nearest mean of each point and adding it to the task's
+    // own partial sums, which are then merged.  Apart from the file, the
+    // memory used is O(taskCount * k), independent of the number of
+    // points, since no assignment array is kept.
+
+    private final PointFile file;
+    private final int k;
+    private final int taskCount;
+    private double[] mx, my;
+    private int iterations;
+
+    public KMeans4M(PointFile file, int k) {
+        this(file, k, 8);
+    }
+
+    public KMeans4M(PointFile file, int k, int taskCount) {
+        this.file = file;
+        this.k = k;
+        this.taskCount = taskCount;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final long n = file.size();
+        final int k = initialPoints.length;
+        final double[] mx = new double[k], my = new double[k];
+        final double[][] sumx = new double[taskCount][k], sumy = new double[taskCount][k];
+        final int[][] count = new int[taskCount][k];
+        for (int ci = 0; ci < k; ci++) {
+            mx[ci] = file.x(initialPoints[ci]);
+            my[ci] = file.y(initialPoints[ci]);
+        }
+        ExecutorService executor = Executors.newWorkStealingPool();
+        try {
+            boolean converged = false;
+            while (!converged) {
+                iterations++;
+                // Fused assignment and accumulation step
+                List<Future<?>> tasks = new ArrayList<>();
+                for (int t = 0; t < taskCount; t++) {
+                    final double[] sx = sumx[t], sy = sumy[t];
+                    final int[] cnt = count[t];
+                    final long first = n * t / taskCount, last = n * (t + 1) / taskCount;
+                    tasks.add(executor.submit(() -> {
+                        Arrays.fill(sx, 0.0);
+                        Arrays.fill(sy, 0.0);
+                        Arrays.fill(cnt, 0);
+                        file.forEachChunk(first, last, (chunk, from, to) -> {
+                            for (int i = from; i < to; i++) {
+                                double x = chunk.get(2 * i), y = chunk.get(2 * i + 1);
+                                int ci = KMeans4.nearest(x, y, mx, my);
+                                sx[ci] += x;
+                                sy[ci] += y;
+                                cnt[ci]++;
+                            }
+                        });
+                    }));
+                }
+                for (Future<?> task : tasks)
+                    task.get();
+                // Update step: merge the partial sums and recompute means
+                KMeans4P.reduce(sumx, sumy, count);
+                converged = KMeans4.updateMeans(mx, my, sumx[0], sumy[0], count[0]);
+            }
+        } catch (InterruptedException | ExecutionException exn) {
+            throw new RuntimeException(exn);
+        } finally {
+            executor.shutdown();
+        }
+        this.mx = mx;
+        this.my = my;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        KMeans4.print(mx, my, iterations);
+    }
+}
+
+// ----------------------------------------------------------------------
+
+// Choice of initial cluster means, as an alternative to
+// GenerateData.randomIndexes.  Both methods return k distinct indexes
+// into points, to be passed to findClusters.  k-means++ (Arthur and
+// Vassilvitskii 2007) picks each next mean among the points with
+// probability proportional to the squared distance D2 to the nearest
+// mean picked so far.  k-means|| (Bahmani et al. 2012) instead picks
+// about l points per round independently with probability l*D2/sum(D2),
+// for a few rounds, then weighs each candidate by the number of points
+// nearest to it and reduces the candidates to k by a weighted k-means++.
+// The work over the points array is done in parallel over CHUNKS
+// chunks, each chunk also keeping the sum of its D2 values so that
+// sampling need only scan one chunk.  In k-means|| the nearest of many
+// candidates is found with a KdTreeIndex over the candidates.
+
+class Seeding {
+    private static final int CHUNKS = 64;
+
+    public static int[] kMeansPlusPlus(Point[] points, int k) {
+        return kMeansPlusPlus(points, k, new Random(42));
+    }
+
+    public static int[] kMeansPlusPlus(Point[] points, int k, Random rnd) {
+        final int n = points.length;
+        final double[] d2 = new double[n], chunkSum = new double[CHUNKS];
+        final boolean[] chosen = new boolean[n];
+        Arrays.fill(d2, Double.POSITIVE_INFINITY);
+        int[] result = new int[k];
+        int next = rnd.nextInt(n);
+        for (int i = 0; i < k; i++) {
+            result[i] = next;
+            chosen[next] = true;
+            final Point mean = points[next];
+            parallelChunks(n, (c, from, to) -> {
+                double sum = 0.0;
+                for (int pi = from; pi < to; pi++) {
+                    d2[pi] = Math.min(d2[pi], points[pi].sqrDist(mean));
+                    sum += d2[pi];
+                }
+                chunkSum[c] = sum;
+            });
+            if (i + 1 < k)
+                next = sample(d2, chunkSum, chosen, rnd);
+        }
+        return result;
+    }
+
+    public static int[] kMeansParallel(Point[] points, int k) {
+        return kMeansParallel(points, k, 2.0 * k, 5, new Random(42));
+    }
+
+    // Oversample with expected l new candidates per round for the
+    // given number of rounds
+    public static int[] kMeansParallel(Point[] points, int k, double l, int rounds, Random rnd) {
+        final int n = points.length;
+        final double[] d2 = new double[n], chunkSum = new double[CHUNKS];
+        final boolean[] chosen = new boolean[n];
+        Arrays.fill(d2, Double.POSITIVE_INFINITY);
+        List<Integer> candidates = new ArrayList<>();
+        List<Integer> fresh = new ArrayList<>();
+        fresh.add(rnd.nextInt(n));
+        for (int r = 0; r <= rounds && !fresh.isEmpty(); r++) {
+            for (int pi : fresh)
+                chosen[pi] = true;
+            candidates.addAll(fresh);
+            final Point[] added = fresh.stream().map(pi -> points[pi]).toArray(Point[]::new);
+            final KdTreeIndex index = new KdTreeIndex();
+            index.build(added);
+            parallelChunks(n, (c, from, to) -> {
+                double sum = 0.0;
+                for (int pi = from; pi < to; pi++) {
+                    Point p = points[pi];
+                    d2[pi] = Math.min(d2[pi], p.sqrDist(added[index.nearest(p)]));
+                    sum += d2[pi];
+                }
+                chunkSum[c] = sum;
+            });
+            if (r == rounds)
+                break;
+            final double psi = Arrays.stream(chunkSum).sum();
+            final long[] seeds = rnd.longs(CHUNKS).toArray();
+            final List<List<Integer>> picked = new ArrayList<>();
+            for (int c = 0; c < CHUNKS; c++)
+                picked.add(new ArrayList<>());
+            parallelChunks(n, (c, from, to) -> {
+                Random chunkRnd = new Random(seeds[c]);
+                for (int pi = from; pi < to; pi++)
+                    if (!chosen[pi] && chunkRnd.nextDouble() * psi < l * d2[pi])
+                        picked.get(c).add(pi);
+            });
+            fresh = new ArrayList<>();
+            for (List<Integer> chunkPicked : picked)
+                fresh.addAll(chunkPicked);
+        }
+        if (candidates.size() <= k)
+            return fill(candidates, chosen, k, rnd);
+        // Weigh each candidate by the number of points nearest to it
+        final Point[] cands = candidates.stream().map(pi -> points[pi]).toArray(Point[]::new);
+        final KdTreeIndex index = new KdTreeIndex();
+        index.build(cands);
+        final int[][] chunkWeight = new int[CHUNKS][cands.length];
+        parallelChunks(n, (c, from, to) -> {
+            for (int pi = from; pi < to; pi++)
+                chunkWeight[c][index.nearest(points[pi])]++;
+        });
+        final double[] weight = new double[cands.length];
+        for (int[] w : chunkWeight)
+            for (int ci = 0; ci < cands.length; ci++)
+                weight[ci] += w[ci];
+        // Weighted k-means++ over the candidates
+        final double[] cd2 = new double[cands.length];
+        Arrays.fill(cd2, Double.POSITIVE_INFINITY);
+        final boolean[] taken = new boolean[cands.length];
+        int[] result = new int[k];
+        int next = 0;
+        for (int i = 0; i < k; i++) {
+            result[i] = candidates.get(next);
+            taken[next] = true;
+            double total = 0.0;
+            for (int ci = 0; ci < cands.length; ci++) {
+                cd2[ci] = Math.min(cd2[ci], cands[ci].sqrDist(cands[next]));
+                total += taken[ci] ? 0.0 : weight[ci] * cd2[ci];
+            }
+            double r = rnd.nextDouble() * total;
+            next = -1;
+            for (int ci = 0; ci < cands.length; ci++)
+                if (!taken[ci]) {
+                    next = ci;
+                    r -= weight[ci] * cd2[ci];
+                    if (r < 0.0)
+                        break;
+                }
+        }
+        return result;
+    }
+
+    // Sample an index pi not yet chosen with probability proportional to d2[pi]
+    private static int sample(double[] d2, double[] chunkSum, boolean[] chosen, Random rnd) {
+        final int n = d2.length;
+        double total = 0.0;
+        for (double s : chunkSum)
+            total += s;
+        if (total > 0.0) {
+            double r = rnd.nextDouble() * total;
+            for (int c = 0; c < CHUNKS; c++) {
+                if (r >= chunkSum[c] && c + 1 < CHUNKS) {
+                    r -= chunkSum[c];
+                    continue;
+                }
+                int last = -1;
+                for (int pi = chunkFrom(n, c); pi < chunkFrom(n, c + 1); pi++)
+                    if (d2[pi] > 0.0 && !chosen[pi]) {
+                        last = pi;
+                        r -= d2[pi];
+                        if (r < 0.0)
+                            return pi;
+                    }
+                if (last >= 0) // Rounding: r was within this chunk
+                    return last;
+            }
+        }
+        // All remaining points coincide with chosen means; pick any unchosen
+        int pi = rnd.nextInt(n);
+        while (chosen[pi])
+            pi = (pi + 1) % n;
+        return pi;
+    }
+
+    // Pad the candidates with random unchosen indexes up to k
+    private static int[] fill(List<Integer> candidates, boolean[] chosen, int k, Random rnd) {
+        int[] result = new int[k];
+        for (int i = 0; i < k; i++) {
+            if (i < candidates.size())
+                result[i] = candidates.get(i);
+            else {
+                int pi = rnd.nextInt(chosen.length);
+                while (chosen[pi])
+                    pi = (pi + 1) % chosen.length;
+                chosen[pi] = true;
+                result[i] = pi;
+            }
+        }
+        return result;
+    }
+
+    private static int chunkFrom(int n, int c) {
+        return (int) ((long) n * c / CHUNKS);
+    }
+
+    interface ChunkTask {
+        void run(int chunk, int from, int to);
+    }
+
+    private static void parallelChunks(int n, ChunkTask body) {
+        IntStream.range(0, CHUNKS).parallel()
+                 .forEach(c -> body.run(c, chunkFrom(n, c), chunkFrom(n, c + 1)));
+    }
+}
+
+// -- PARALLEL -------------------
+
+class KMeans4F implements KMeans {
+    // Parallel version 4 with compact point storage.  The coordinates
+    // are stored either as floats (8 bytes per point), or quantized to
+    // 16 bits relative to the bounding box of the points (4 bytes per
+    // point), where coordinate q stands for min + q * scale.  Means and
+    // sums are kept in double.  As in KMeans2FP each task finds the
+    // nearest mean of each point in its range and adds the point to its
+    // own partial sums in a single pass, so no assignment array is kept
+    // and the points are the only data proportional to n.
+
+    enum Storage { FLOAT, QUANTIZED }
+
+    private final Storage storage;
+    private final float[] fx, fy;               // FLOAT
+    private final char[] qx, qy;                // QUANTIZED, unsigned 16 bit
+    private final double minx, miny, scalex, scaley;
+    private final int n, k;
+    private final int taskCount;
+    private double[] mx, my;
+    private int iterations;
+
+    public KMeans4F(Point[] points, int k, Storage storage) {
+        this(points, k, storage, 8);
+    }
+
+    public KMeans4F(Point[] points, int k, Storage storage, int taskCount) {
+        this.n = points.length;
+        this.k = k;
+        this.storage = storage;
+        this.taskCount = taskCount;
+        if (storage == Storage.FLOAT) {
+            fx = new float[n];
+            fy = new float[n];
+            for (int pi = 0; pi < n; pi++) {
+                fx[pi] = (float) points[pi].x;
+                fy[pi] = (float) points[pi].y;
+            }
+            qx = qy = null;
+            minx = miny = scalex = scaley = 0.0;
+        } else {
+            double x0 = Double.POSITIVE_INFINITY, y0 = Double.POSITIVE_INFINITY,
+                   x1 = Double.NEGATIVE_INFINITY, y1 = Double.NEGATIVE_INFINITY;
+            for (Point p : points) {
+                x0 = Math.min(x0, p.x);
+                y0 = Math.min(y0, p.y);
+                x1 = Math.max(x1, p.x);
+                y1 = Math.max(y1, p.y);
+            }
+            minx = x0;
+            miny = y0;
+            scalex = x1 > x0 ? (x1 - x0) / 0xFFFF : 1.0;
+            scaley = y1 > y0 ? (y1 - y0) / 0xFFFF : 1.0;
+            qx = new char[n];
+            qy = new char[n];
+            for (int pi = 0; pi < n; pi++) {
+                qx[pi] = (char) Math.round((points[pi].x - minx) / scalex);
+                qy[pi] = (char) Math.round((points[pi].y - miny) / scaley);
+            }
+            fx = fy = null;
+        }
+    }
+
+    public double x(int pi) {
+        return storage == Storage.FLOAT ? fx[pi] : minx + qx[pi] * scalex;
+    }
+
+    public double y(int pi) {
+        return storage == Storage.FLOAT ? fy[pi] : miny + qy[pi] * scaley;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final int k = initialPoints.length;
+        final double[] mx = new double[k], my = new double[k];
+        final double[][] sumx = new double[taskCount][k], sumy = new double[taskCount][k];
+        final int[][] count = new int[taskCount][k];
+        for (int ci = 0; ci < k; ci++) {
+            mx[ci] = x(initialPoints[ci]);
+            my[ci] = y(initialPoints[ci]);
+        }
+        ExecutorService executor = Executors.newWorkStealingPool();
+        try {
+            boolean converged = false;
+            while (!converged) {
+                iterations++;
+                // Fused assignment and accumulation step
+                KMeans4P.parallelFor(executor, taskCount, n, (t, from, to) -> {
+                    final double[] sx = sumx[t], sy = sumy[t];
+                    final int[] cnt = count[t];
+                    Arrays.fill(sx, 0.0);
+                    Arrays.fill(sy, 0.0);
+                    Arrays.fill(cnt, 0);
+                    if (storage == Storage.FLOAT)
+                        for (int pi = from; pi < to; pi++) {
+                            double x = fx[pi], y = fy[pi];
+                            int ci = KMeans4.nearest(x, y, mx, my);
+                            sx[ci] += x;
+                            sy[ci] += y;
+                            cnt[ci]++;
+                        }
+                    else
+                        for (int pi = from; pi < to; pi++) {
+                            double x = minx + qx[pi] * scalex, y = miny + qy[pi] * scaley;
+                            int ci = KMeans4.nearest(x, y, mx, my);
+                            sx[ci] += x;
+                            sy[ci] += y;
+                            cnt[ci]++;
+                        }
+                });
+                // Update step: merge the partial sums and recompute means
+                KMeans4P.reduce(sumx, sumy, count);
+                converged = KMeans4.updateMeans(mx, my, sumx[0], sumy[0], count[0]);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        this.mx = mx;
+        this.my = my;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        KMeans4.print(mx, my, iterations);
+    }
+}
+
+// ----------------------------------------------------------------------
+
+class KMeansD implements KMeans {
+    // Version 4 generalized to d-dimensional points.  The n points are
+    // stored row-major in a flat array, point pi occupying data[pi*d]
+    // to data[pi*d+d-1], and likewise the k means in a flat array means.
+    // Each iteration is a single fused pass: every task finds the
+    // nearest mean of each point in its range and adds the point to the
+    // task's own partial sums, which are then merged.  With taskCount 1
+    // the pass runs in the calling thread.
+
+    private final double[] data;
+    private final int d, k;
+    private final int taskCount;
+    private double[] means;
+    private int iterations;
+
+    public KMeansD(double[] data, int d, int k) {
+        this(data, d, k, 1);
+    }
+
+    public KMeansD(double[] data, int d, int k, int taskCount) {
+        this.data = data;
+        this.d = d;
+        this.k = k;
+        this.taskCount = taskCount;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final int n = data.length / d, k = initialPoints.length;
+        final double[] means = new double[k * d];
+        final double[][] sums = new double[taskCount][k * d];
+        final int[][] count = new int[taskCount][k];
+        for (int ci = 0; ci < k; ci++)
+            System.arraycopy(data, initialPoints[ci] * d, means, ci * d, d);
+        final KMeans4P.RangeTask pass = (t, from, to) -> {
+            final double[] sum = sums[t];
+            final int[] cnt = count[t];
+            Arrays.fill(sum, 0.0);
+            Arrays.fill(cnt, 0);
+            for (int pi = from; pi < to; pi++) {
+                int ci = nearest(data, pi * d, means, d);
+                for (int j = 0, po = pi * d, co = ci * d; j < d; j++)
+                    sum[co + j] += data[po + j];
+                cnt[ci]++;
+            }
+        };
+        ExecutorService executor = taskCount > 1 ? Executors.newWorkStealingPool() : null;
+        try {
+            boolean converged = false;
+            while (!converged) {
+                iterations++;
+                // Fused assignment and accumulation step
+                if (executor != null)
+                    KMeans4P.parallelFor(executor, taskCount, n, pass);
+                else
+                    pass.run(0, 0, n);
+                // Update step: merge the partial sums and recompute means
+                for (int t = 1; t < taskCount; t++) {
+                    for (int i = 0; i < k * d; i++)
+                        sums[0][i] += sums[t][i];
+                    for (int ci = 0; ci < k; ci++)
+                        count[0][ci] += count[t][ci];
+                }
+                converged = true;
+                for (int ci = 0; ci < k; ci++) {
+                    if (count[0][ci] == 0)
+                        continue;
+                    for (int j = 0, co = ci * d; j < d; j++) {
+                        double mean = sums[0][co + j] / count[0][ci];
+                        converged &= Point.almostEquals(means[co + j], mean);
+                        means[co + j] = mean;
+                    }
+                }
+            }
+        } finally {
+            if (executor != null)
+                executor.shutdown();
+        }
+        this.means = means;
+    }
+
+    // Index of the mean nearest to the point at data[po..po+d-1]
+    static int nearest(double[] data, int po, double[] means, int d) {
+        int best = 0;
+        double bestDist = Double.POSITIVE_INFINITY;
+        for (int ci = 0, co = 0; co < means.length; ci++, co += d) {
+            double dist = 0.0;
+            for (int j = 0; j < d; j++) {
+                double diff = data[po + j] - means[co + j];
+                dist += diff * diff;
+            }
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = ci;
+            }
+        }
+        return best;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        for (int co = 0; co < means.length; co += d) {
+            StringBuilder sb = new StringBuilder("mean = (");
+            for (int j = 0; j < d; j++)
+                sb.append(j == 0 ? "" : ", ").append(String.format("%.6f", means[co + j]));
+            System.out.println(sb.append(")"));
+        }
+        System.out.printf("Used %d iterations%n", iterations);
+    }
+}
+
+// Generation of d-dimensional test data, in the style of GenerateData:
+// points near 81 centers placed at random in [0, 90)^d, each coordinate
+// offset by up to 8, using a fixed seed for reproducibility.  The
+// result is a flat row-major array as used by KMeansD.
+
+class GenerateDataD {
+    private static final int CENTERS = 81;
+
+    public static double[] randomPoints(int n, int d) {
+        final Random rnd = new Random(42);
+        final double[] centers = new double[CENTERS * d];
+        for (int i = 0; i < centers.length; i++)
+            centers[i] = rnd.nextInt(9) * 10 + 4;
+        final double[] data = new double[n * d];
+        for (int pi = 0; pi < n; pi++) {
+            int co = rnd.nextInt(CENTERS) * d;
+            for (int j = 0; j < d; j++)
+                data[pi * d + j] = centers[co + j] + rnd.nextDouble() * 8;
         }
+        return data;
     }
 }
 
@@ -0,0 +1,228 @@
+// k-means distributed over several local worker processes
+
+// The coordinator starts the workers as separate JVMs on the same
+// classpath, so this file must be compiled together with TestKMeans:
+//   javac TestKMeansDistributed.java TestKMeans.java
+//   java TestKMeansDistributed [workers]
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+public class TestKMeansDistributed {
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals("worker")) {
+            KMeansWorker.run(Integer.parseInt(args[1]));
+            return;
+        }
+        final int workers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        final int n = 200_000, k = 81;
+        final Point[] points = GenerateData.randomPoints(n);
+        final int[] initialPoints = GenerateData.randomIndexes(n, k);
+        for (int i = 0; i < 3; i++) {
+            TestKMeans.timeKMeans(new KMeans4(points, k), initialPoints);
+            TestKMeans.timeKMeans(new KMeansDistributed(points, k, workers), initialPoints);
+            System.out.println();
+        }
+    }
+}
+
+// The protocol between coordinator and worker, over a loopback TCP
+// connection with Data streams.  After connecting, the worker receives
+// its shard: a point count m followed by m pairs x, y.  Then it
+// repeatedly receives a command byte: ITERATE is followed by a count k
+// and k pairs of mean coordinates, and the worker answers with, for
+// each cluster ci, sumx, sumy and count of the points in its shard
+// that are nearest to mean ci.  STOP makes the worker exit.
+
+class KMeansProtocol {
+    static final byte ITERATE = 1, STOP = 2;
+}
+
+// -- DISTRIBUTED -------------------
+
+class KMeansDistributed implements KMeans {
+    // Version 4 as map/reduce across processes.  The coordinator splits
+    // the points into one shard per worker process and sends each
+    // worker its shard once.  In each iteration it sends the current
+    // means to all workers, which compute the nearest mean of each of
+    // their points and return per-cluster partial sums and counts; the
+    // coordinator merges these and computes the new means, exactly as
+    // KMeans4P merges the partial sums of its tasks.  The workers run
+    // concurrently, since the coordinator sends the means to all before
+    // reading any answer.
+
+    // How long to wait for a started worker to connect
+    private static final int CONNECT_TIMEOUT_MS = 30_000;
+
+    private final Point[] points;
+    private final int k;
+    private final int workerCount;
+    private double[] mx, my;
+    private int iterations;
+
+    public KMeansDistributed(Point[] points, int k, int workerCount) {
+        this.points = points;
+        this.k = k;
+        this.workerCount = workerCount;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final int n = points.length, k = initialPoints.length;
+        final double[] mx = new double[k], my = new double[k];
+        final double[][] sumx = new double[workerCount][k], sumy = new double[workerCount][k];
+        final int[][] count = new int[workerCount][k];
+        for (int ci = 0; ci < k; ci++) {
+            mx[ci] = points[initialPoints[ci]].x;
+            my[ci] = points[initialPoints[ci]].y;
+        }
+        final Process[] processes = new Process[workerCount];
+        final Socket[] sockets = new Socket[workerCount];
+        final DataInputStream[] ins = new DataInputStream[workerCount];
+        final DataOutputStream[] outs = new DataOutputStream[workerCount];
+        try (ServerSocket server = new ServerSocket(0, workerCount, InetAddress.getLoopbackAddress())) {
+            // Start the workers and send each its shard
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            for (int w = 0; w < workerCount; w++)
+                processes[w] = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                  "TestKMeansDistributed", "worker",
+                                                  String.valueOf(server.getLocalPort()))
+                    .inheritIO().start();
+            server.setSoTimeout(CONNECT_TIMEOUT_MS);
+            for (int w = 0; w < workerCount; w++) {
+                sockets[w] = accept(server, processes);
+                sockets[w].setTcpNoDelay(true);
+                ins[w] = new DataInputStream(new BufferedInputStream(sockets[w].getInputStream()));
+                outs[w] = new DataOutputStream(new BufferedOutputStream(sockets[w].getOutputStream()));
+                final int from = (int) ((long) n * w / workerCount),
+                          to = (int) ((long) n * (w + 1) / workerCount);
+                outs[w].writeInt(to - from);
+                for (int pi = from; pi < to; pi++) {
+                    outs[w].writeDouble(points[pi].x);
+                    outs[w].writeDouble(points[pi].y);
+                }
+                outs[w].flush();
+            }
+            boolean converged = false;
+            while (!converged) {
+                iterations++;
+                // Map step: send the means to every worker
+                for (DataOutputStream out : outs) {
+                    out.writeByte(KMeansProtocol.ITERATE);
+                    out.writeInt(k);
+                    for (int ci = 0; ci < k; ci++) {
+                        out.writeDouble(mx[ci]);
+                        out.writeDouble(my[ci]);
+                    }
+                    out.flush();
+                }
+                // Reduce step: collect and merge the partial sums
+                for (int w = 0; w < workerCount; w++)
+                    for (int ci = 0; ci < k; ci++) {
+                        sumx[w][ci] = ins[w].readDouble();
+                        sumy[w][ci] = ins[w].readDouble();
+                        count[w][ci] = ins[w].readInt();
+                    }
+                KMeans4P.reduce(sumx, sumy, count);
+                converged = KMeans4.updateMeans(mx, my, sumx[0], sumy[0], count[0]);
+            }
+            for (DataOutputStream out : outs) {
+                out.writeByte(KMeansProtocol.STOP);
+                out.flush();
+            }
+            for (Process process : processes)
+                process.waitFor();
+        } catch (IOException | InterruptedException exn) {
+            throw new RuntimeException(exn);
+        } finally {
+            for (Socket socket : sockets)
+                if (socket != null)
+                    try { socket.close(); } catch (IOException exn) { }
+            for (Process process : processes)
+                if (process != null && process.isAlive())
+                    process.destroy();
+        }
+        this.mx = mx;
+        this.my = my;
+    }
+
+    // Accept the next worker connection, failing if a worker has died
+    // or none connects within the timeout
+    private static Socket accept(ServerSocket server, Process[] processes) throws IOException {
+        try {
+            return server.accept();
+        } catch (SocketTimeoutException exn) {
+            for (int w = 0; w < processes.length; w++)
+                if (!processes[w].isAlive())
+                    throw new IOException("worker " + w + " exited with status "
+                                          + processes[w].exitValue() + " before connecting", exn);
+            throw new IOException("no worker connected within " + CONNECT_TIMEOUT_MS + " ms", exn);
+        }
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        KMeans4.print(mx, my, iterations);
+    }
+}
+
+// A worker process: connects to the coordinator on the given loopback
+// port, receives its shard, and answers ITERATE commands until STOP.
+
+class KMeansWorker {
+    public static void run(int port) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            final int m = in.readInt();
+            final double[] xs = new double[m], ys = new double[m];
+            for (int pi = 0; pi < m; pi++) {
+                xs[pi] = in.readDouble();
+                ys[pi] = in.readDouble();
+            }
+            double[] mx = new double[0], my = new double[0], sumx = mx, sumy = my;
+            int[] count = new int[0];
+            while (in.readByte() == KMeansProtocol.ITERATE) {
+                final int k = in.readInt();
+                if (k != mx.length) {
+                    mx = new double[k];
+                    my = new double[k];
+                    sumx = new double[k];
+                    sumy = new double[k];
+                    count = new int[k];
+                }
+                for (int ci = 0; ci < k; ci++) {
+                    mx[ci] = in.readDouble();
+                    my[ci] = in.readDouble();
+                }
+                Arrays.fill(sumx, 0.0);
+                Arrays.fill(sumy, 0.0);
+                Arrays.fill(count, 0);
+                for (int pi = 0; pi < m; pi++) {
+                    int ci = KMeans4.nearest(xs[pi], ys[pi], mx, my);
+                    sumx[ci] += xs[pi];
+                    sumy[ci] += ys[pi];
+                    count[ci]++;
+                }
+                for (int ci = 0; ci < k; ci++) {
+                    out.writeDouble(sumx[ci]);
+                    out.writeDouble(sumy[ci]);
+                    out.writeInt(count[ci]);
+                }
+                out.flush();
+            }
+        }
+    }
+}
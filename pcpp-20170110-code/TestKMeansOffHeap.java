@@ -0,0 +1,248 @@
+// k-means over points stored off the Java heap using the Foreign
+// Function and Memory API
+
+// java.lang.foreign is a preview API in Java 21, so this file needs a
+// JDK 21 and must be compiled and run with preview features enabled:
+//   javac --release 21 --enable-preview TestKMeansOffHeap.java TestKMeans.java
+//   java --enable-preview TestKMeansOffHeap [n]
+//   java --enable-preview TestKMeansOffHeap -map file
+//   java --enable-preview TestKMeansOffHeap -write n file
+// The first copies n random points to native memory and times KMeans4O
+// against KMeans4P.  The second maps an existing PointFile, which is
+// never written.  The third first writes n random points to the file,
+// replacing whatever it held, and then maps it.
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+public class TestKMeansOffHeap {
+    public static void main(String[] args) throws IOException {
+        final int k = 81;
+        if (args.length == 2 && args[0].equals("-map"))
+            timeMapped(Paths.get(args[1]), k);
+        else if (args.length == 3 && args[0].equals("-write")) {
+            Path path = Paths.get(args[2]);
+            PointFile.writeRandom(path, Long.parseLong(args[1]));
+            timeMapped(path, k);
+        } else if (args.length <= 1) {
+            final int n = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+            final int[] initialPoints = GenerateData.randomIndexes(n, k);
+            final Point[] heapPoints = GenerateData.randomPoints(n);
+            try (SegmentPoints points = SegmentPoints.copyOf(heapPoints)) {
+                for (int i = 0; i < 3; i++) {
+                    TestKMeans.timeKMeans(new KMeans4P(heapPoints, k), initialPoints);
+                    TestKMeans.timeKMeans(new KMeans4O(points, k), initialPoints);
+                    System.out.println();
+                }
+            }
+        } else
+            throw new IllegalArgumentException("Usage: TestKMeansOffHeap [n] | -map file | -write n file");
+    }
+
+    // Map an existing PointFile and time KMeans4O on it; the initial
+    // means are drawn from the first 2^31 points
+    private static void timeMapped(Path path, int k) throws IOException {
+        try (SegmentPoints points = SegmentPoints.map(path)) {
+            if (points.size() < k)
+                throw new IOException("Fewer than " + k + " points in " + path);
+            final int[] initialPoints =
+                GenerateData.randomIndexes((int) Math.min(points.size(), Integer.MAX_VALUE), k);
+            System.out.printf("%s: %d points%n", path, points.size());
+            for (int i = 0; i < 3; i++)
+                TestKMeans.timeKMeans(new KMeans4O(points, k), initialPoints);
+        }
+    }
+}
+
+// A point store outside the Java heap: n points as consecutive x, y
+// doubles in a MemorySegment, either allocated in native memory or
+// mapped from a PointFile.  The segment is owned by a shared Arena, so
+// any thread may read it, and closing the store frees or unmaps it at
+// once rather than when the garbage collector gets to it.  Points are
+// addressed by long indexes, so the store may hold more than 2^31
+// points and more than fits on the heap.  The byte order is that of
+// PointFile, little-endian.
+
+class SegmentPoints implements AutoCloseable {
+    static final ValueLayout.OfDouble COORD = ValueLayout.JAVA_DOUBLE.withOrder(ByteOrder.LITTLE_ENDIAN);
+    static final long POINT_BYTES = 2 * COORD.byteSize();
+
+    private final Arena arena;
+    private final MemorySegment segment;
+    private final long n;
+
+    private SegmentPoints(Arena arena, MemorySegment segment) {
+        this.arena = arena;
+        this.segment = segment;
+        this.n = segment.byteSize() / POINT_BYTES;
+    }
+
+    // Uninitialized native storage for n points
+    public static SegmentPoints allocate(long n) {
+        Arena arena = Arena.ofShared();
+        return new SegmentPoints(arena, arena.allocate(n * POINT_BYTES, COORD.byteAlignment()));
+    }
+
+    public static SegmentPoints copyOf(Point[] points) {
+        SegmentPoints store = allocate(points.length);
+        for (int pi = 0; pi < points.length; pi++)
+            store.set(pi, points[pi].x, points[pi].y);
+        return store;
+    }
+
+    // n points from GenerateData, generated in batches so that they
+    // need never all be on the heap
+    public static SegmentPoints random(long n) {
+        final int batch = 1 << 16;
+        SegmentPoints store = allocate(n);
+        for (long pi = 0; pi < n; )
+            for (Point p : GenerateData.randomPoints((int) Math.min(batch, n - pi)))
+                store.set(pi++, p.x, p.y);
+        return store;
+    }
+
+    // Map the points of a file written by PointFile.write or writeRandom
+    public static SegmentPoints map(Path path) throws IOException {
+        Arena arena = Arena.ofShared();
+        try (FileChannel ch = FileChannel.open(path, READ)) {
+            long n = PointFile.readSize(ch, path);
+            return new SegmentPoints(arena, ch.map(FileChannel.MapMode.READ_ONLY, PointFile.HEADER,
+                                                   n * POINT_BYTES, arena));
+        } catch (IOException | RuntimeException exn) {
+            arena.close();
+            throw exn;
+        }
+    }
+
+    public long size() {
+        return n;
+    }
+
+    public double x(long pi) {
+        return segment.getAtIndex(COORD, 2 * pi);
+    }
+
+    public double y(long pi) {
+        return segment.getAtIndex(COORD, 2 * pi + 1);
+    }
+
+    public void set(long pi, double x, double y) {
+        segment.setAtIndex(COORD, 2 * pi, x);
+        segment.setAtIndex(COORD, 2 * pi + 1, y);
+    }
+
+    // The points first..last-1 as a segment of their own, holding
+    // coordinates x, y of point first+i at indexes 2*i and 2*i+1
+    public MemorySegment slice(long first, long last) {
+        return segment.asSlice(first * POINT_BYTES, (last - first) * POINT_BYTES);
+    }
+
+    public void close() {
+        arena.close();
+    }
+}
+
+// -- PARALLEL -------------------
+
+class KMeans4O implements KMeans {
+    // Parallel version 4 over an off-heap SegmentPoints store, in the
+    // style of KMeans4M.  The points are split into taskCount ranges,
+    // and each task reads the coordinates of its range from its own
+    // slice of the segment, finding the nearest mean of each point and
+    // adding it to the task's own partial sums, which are then merged.
+    // The hot loop allocates nothing, and the only heap memory used is
+    // O(taskCount * k), however many points there are.
+
+    private final SegmentPoints points;
+    private final int k;
+    private final int taskCount;
+    private double[] mx, my;
+    private int iterations;
+
+    public KMeans4O(SegmentPoints points, int k) {
+        this(points, k, 8);
+    }
+
+    public KMeans4O(SegmentPoints points, int k, int taskCount) {
+        this.points = points;
+        this.k = k;
+        this.taskCount = taskCount;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final long n = points.size();
+        final int k = initialPoints.length;
+        final double[] mx = new double[k], my = new double[k];
+        final double[][] sumx = new double[taskCount][k], sumy = new double[taskCount][k];
+        final int[][] count = new int[taskCount][k];
+        for (int ci = 0; ci < k; ci++) {
+            mx[ci] = points.x(initialPoints[ci]);
+            my[ci] = points.y(initialPoints[ci]);
+        }
+        final MemorySegment[] slices = new MemorySegment[taskCount];
+        for (int t = 0; t < taskCount; t++)
+            slices[t] = points.slice(n * t / taskCount, n * (t + 1) / taskCount);
+        ExecutorService executor = Executors.newWorkStealingPool();
+        try {
+            boolean converged = false;
+            while (!converged) {
+                iterations++;
+                // Fused assignment and accumulation step
+                List<Future<?>> tasks = new ArrayList<>();
+                for (int t = 0; t < taskCount; t++) {
+                    final double[] sx = sumx[t], sy = sumy[t];
+                    final int[] cnt = count[t];
+                    final MemorySegment slice = slices[t];
+                    tasks.add(executor.submit(() -> {
+                        Arrays.fill(sx, 0.0);
+                        Arrays.fill(sy, 0.0);
+                        Arrays.fill(cnt, 0);
+                        final long coords = slice.byteSize() / SegmentPoints.COORD.byteSize();
+                        for (long i = 0; i < coords; i += 2) {
+                            double x = slice.getAtIndex(SegmentPoints.COORD, i),
+                                   y = slice.getAtIndex(SegmentPoints.COORD, i + 1);
+                            int ci = KMeans4.nearest(x, y, mx, my);
+                            sx[ci] += x;
+                            sy[ci] += y;
+                            cnt[ci]++;
+                        }
+                    }));
+                }
+                for (Future<?> task : tasks)
+                    task.get();
+                // Update step: merge the partial sums and recompute means
+                KMeans4P.reduce(sumx, sumy, count);
+                converged = KMeans4.updateMeans(mx, my, sumx[0], sumy[0], count[0]);
+            }
+        } catch (InterruptedException | ExecutionException exn) {
+            throw new RuntimeException(exn);
+        } finally {
+            executor.shutdown();
+        }
+        this.mx = mx;
+        this.my = my;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        KMeans4.print(mx, my, iterations);
+    }
+}
@@ -0,0 +1,299 @@
+// k-means engines built on the lock-free queues and the work-stealing
+// scheduler of TestMSQueueNeater
+
+// These engines need the queue classes, so this file must be compiled
+// together with TestKMeans and TestMSQueueNeater, for instance:
+//   javac TestKMeansQueues.java TestKMeans.java TestMSQueueNeater.java
+//   java TestKMeansQueues
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestKMeansQueues {
+    public static void main(String[] args) {
+        final int n = 200_000, k = 81;
+        final Point[] points = GenerateData.randomPoints(n);
+        final int[] initialPoints = GenerateData.randomIndexes(n, k);
+        for (int i = 0; i < 3; i++) {
+            TestKMeans.timeKMeans(new KMeans2P(points, k), initialPoints);
+            TestKMeans.timeKMeans(new KMeans2Q(points, k), initialPoints);
+            // TestKMeans.timeKMeans(new KMeans2Q(points, k, 8, 2, 1), initialPoints);
+            TestKMeans.timeKMeans(new KMeans4P(points, k), initialPoints);
+            TestKMeans.timeKMeans(new KMeans4S(points, k), initialPoints);
+            System.out.println();
+        }
+    }
+}
+
+// -- PARALLEL -------------------
+
+class KMeans2Q implements KMeans {
+    // Parallel version 2, pipelined through queues.  The clusters are
+    // split into shardCount shards, cluster ci belonging to shard ci %
+    // shardCount, and each shard has an accumulator task that owns the
+    // sums of its clusters.  In each iteration taskCount assignment tasks
+    // find the nearest mean of each point in their range and collect the
+    // (cluster index, point) pairs in one Batch per shard, enqueueing a
+    // batch on the shard's UnboundedQueue when it holds batchSize pairs;
+    // so the update step runs concurrently with the assignment step.
+    // Each assignment task ends by enqueueing the DONE marker on every
+    // queue, and an accumulator has its sums complete when it has seen
+    // taskCount markers.  Accumulators block in BlockingMSQueue.take on
+    // an empty queue, so the tasks run on a pool with a thread for each.
+
+    private static final Batch DONE = new Batch(0);
+
+    private final Point[] points;
+    private final int k;
+    private final int taskCount, shardCount, batchSize;
+    private double[] mx, my;
+    private int iterations;
+    private final AtomicLong batches = new AtomicLong();
+
+    public KMeans2Q(Point[] points, int k) {
+        this(points, k, 8, 2, 256);
+    }
+
+    public KMeans2Q(Point[] points, int k, int taskCount, int shardCount, int batchSize) {
+        this.points = points;
+        this.k = k;
+        this.taskCount = taskCount;
+        this.shardCount = shardCount;
+        this.batchSize = batchSize;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final int n = points.length, k = initialPoints.length;
+        final double[] mx = new double[k], my = new double[k];
+        final double[] sumx = new double[k], sumy = new double[k];
+        final int[] count = new int[k];
+        for (int ci = 0; ci < k; ci++) {
+            mx[ci] = points[initialPoints[ci]].x;
+            my[ci] = points[initialPoints[ci]].y;
+        }
+        final List<BlockingMSQueue<Batch>> queues = new ArrayList<>();
+        for (int s = 0; s < shardCount; s++)
+            queues.add(new BlockingMSQueue<>());
+        ExecutorService executor = Executors.newFixedThreadPool(taskCount + shardCount);
+        try {
+            boolean converged = false;
+            while (!converged) {
+                iterations++;
+                List<Future<?>> tasks = new ArrayList<>();
+                // Update step: each accumulator sums the points of its clusters
+                for (int s = 0; s < shardCount; s++) {
+                    final BlockingMSQueue<Batch> queue = queues.get(s);
+                    final int shard = s;
+                    tasks.add(executor.submit(() -> {
+                        for (int ci = shard; ci < k; ci += shardCount) {
+                            sumx[ci] = sumy[ci] = 0.0;
+                            count[ci] = 0;
+                        }
+                        int done = 0;
+                        while (done < taskCount) {
+                            Batch batch = queue.take();
+                            if (batch == DONE)
+                                done++;
+                            else
+                                for (int i = 0; i < batch.size; i++) {
+                                    int ci = batch.cluster[i];
+                                    sumx[ci] += batch.point[i].x;
+                                    sumy[ci] += batch.point[i].y;
+                                    count[ci]++;
+                                }
+                        }
+                        return null;
+                    }));
+                }
+                // Assignment step: stream each point to its cluster's shard
+                for (int t = 0; t < taskCount; t++) {
+                    final int from = (int) ((long) n * t / taskCount),
+                              to = (int) ((long) n * (t + 1) / taskCount);
+                    tasks.add(executor.submit(() -> {
+                        Batch[] pending = new Batch[shardCount];
+                        for (int s = 0; s < shardCount; s++)
+                            pending[s] = new Batch(batchSize);
+                        for (int pi = from; pi < to; pi++) {
+                            Point p = points[pi];
+                            int ci = KMeans4.nearest(p.x, p.y, mx, my), s = ci % shardCount;
+                            if (pending[s].add(ci, p)) {
+                                queues.get(s).enqueue(pending[s]);
+                                batches.incrementAndGet();
+                                pending[s] = new Batch(batchSize);
+                            }
+                        }
+                        for (int s = 0; s < shardCount; s++) {
+                            if (pending[s].size > 0) {
+                                queues.get(s).enqueue(pending[s]);
+                                batches.incrementAndGet();
+                            }
+                            queues.get(s).enqueue(DONE);
+                        }
+                    }));
+                }
+                for (Future<?> task : tasks)
+                    task.get();
+                converged = KMeans4.updateMeans(mx, my, sumx, sumy, count);
+            }
+        } catch (InterruptedException | ExecutionException exn) {
+            throw new RuntimeException(exn);
+        } finally {
+            executor.shutdown();
+        }
+        this.mx = mx;
+        this.my = my;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    // Number of batches passed through the queues in all iterations
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public void print() {
+        KMeans4.print(mx, my, iterations);
+        System.out.printf("Passed %d batches of up to %d points%n", batches.get(), batchSize);
+    }
+
+    static class Batch {
+        final int[] cluster;
+        final Point[] point;
+        int size;
+
+        Batch(int capacity) {
+            cluster = new int[capacity];
+            point = new Point[capacity];
+        }
+
+        // Add a pair, return true if the batch is now full
+        boolean add(int ci, Point p) {
+            cluster[size] = ci;
+            point[size] = p;
+            return ++size == cluster.length;
+        }
+    }
+}
+
+// -- PARALLEL -------------------
+
+class KMeans4S implements KMeans {
+    // Parallel version 4 on the work-stealing StealingPool.  Each
+    // iteration is a single fused pass as in KMeans2FP, started by one
+    // task for the whole range of points.  A task repeatedly splits its
+    // range in halves, spawning a task for the upper half onto its
+    // worker's deque, until the range has at most grain points, which
+    // it then processes itself.  Idle workers steal the largest pending
+    // ranges from the top of the other deques, so the load balances
+    // even when some ranges take longer than others.  Points are added
+    // to the partial sums of the worker that processes them, so there
+    // is one set of partial sums per worker, not per task.
+
+    private final double[] xs, ys;
+    private final int k;
+    private final int workerCount, grain;
+    private double[] mx, my;
+    private int iterations;
+
+    public KMeans4S(Point[] points, int k) {
+        this(points, k, Runtime.getRuntime().availableProcessors(), 4096);
+    }
+
+    public KMeans4S(Point[] points, int k, int workerCount, int grain) {
+        this.xs = new double[points.length];
+        this.ys = new double[points.length];
+        for (int pi = 0; pi < points.length; pi++) {
+            xs[pi] = points[pi].x;
+            ys[pi] = points[pi].y;
+        }
+        this.k = k;
+        this.workerCount = workerCount;
+        this.grain = grain;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final int n = xs.length, k = initialPoints.length;
+        final double[] mx = new double[k], my = new double[k];
+        final double[][] sumx = new double[workerCount][k], sumy = new double[workerCount][k];
+        final int[][] count = new int[workerCount][k];
+        for (int ci = 0; ci < k; ci++) {
+            mx[ci] = xs[initialPoints[ci]];
+            my[ci] = ys[initialPoints[ci]];
+        }
+        final StealingPool pool = new StealingPool(workerCount);
+        try {
+            boolean converged = false;
+            while (!converged) {
+                iterations++;
+                // Fused assignment and accumulation step
+                for (int w = 0; w < workerCount; w++) {
+                    Arrays.fill(sumx[w], 0.0);
+                    Arrays.fill(sumy[w], 0.0);
+                    Arrays.fill(count[w], 0);
+                }
+                pool.invoke(new RangeTask(pool, 0, n, mx, my, sumx, sumy, count));
+                // Update step: merge the partial sums and recompute means
+                KMeans4P.reduce(sumx, sumy, count);
+                converged = KMeans4.updateMeans(mx, my, sumx[0], sumy[0], count[0]);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        this.mx = mx;
+        this.my = my;
+    }
+
+    private class RangeTask implements Runnable {
+        private final StealingPool pool;
+        private final int from, to;
+        private final double[] mx, my;
+        private final double[][] sumx, sumy;
+        private final int[][] count;
+
+        RangeTask(StealingPool pool, int from, int to, double[] mx, double[] my,
+                  double[][] sumx, double[][] sumy, int[][] count) {
+            this.pool = pool;
+            this.from = from;
+            this.to = to;
+            this.mx = mx;
+            this.my = my;
+            this.sumx = sumx;
+            this.sumy = sumy;
+            this.count = count;
+        }
+
+        public void run() {
+            int to = this.to;
+            while (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                pool.spawn(new RangeTask(pool, mid, to, mx, my, sumx, sumy, count));
+                to = mid;
+            }
+            final int w = pool.workerIndex();
+            final double[] sx = sumx[w], sy = sumy[w];
+            final int[] cnt = count[w];
+            for (int pi = from; pi < to; pi++) {
+                int ci = KMeans4.nearest(xs[pi], ys[pi], mx, my);
+                sx[ci] += xs[pi];
+                sy[ci] += ys[pi];
+                cnt[ci]++;
+            }
+        }
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        KMeans4.print(mx, my, iterations);
+    }
+}
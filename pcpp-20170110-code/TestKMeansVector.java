@@ -0,0 +1,129 @@
+// k-means with a SIMD nearest-mean kernel using the Vector API
+
+// The Vector API is an incubator module, so this file must be compiled
+// and run with it added, for instance:
+//   javac --add-modules jdk.incubator.vector TestKMeansVector.java
+//   java --add-modules jdk.incubator.vector TestKMeansVector
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+public class TestKMeansVector {
+    public static void main(String[] args) {
+        final int n = 200_000, k = 81;
+        final Point[] points = GenerateData.randomPoints(n);
+        final int[] initialPoints = GenerateData.randomIndexes(n, k);
+        System.out.printf("Vector species %s%n", KMeans4V.SPECIES);
+        for (int i = 0; i < 3; i++) {
+            TestKMeans.timeKMeans(new KMeans4(points, k), initialPoints);
+            TestKMeans.timeKMeans(new KMeans4V(points, k), initialPoints);
+            TestKMeans.timeKMeans(new KMeans4V(points, k, false), initialPoints);
+            System.out.println();
+        }
+    }
+}
+
+class KMeans4V implements KMeans {
+    // Sequential version 4, vectorized.  Data representation as in
+    // KMeans4.  The assignment step takes the points in blocks of as
+    // many points as a DoubleVector has lanes, and for each mean computes
+    // the squared distances from all points of the block at once; a
+    // vector mask of the lanes where the new distance is smaller selects
+    // the new best distances and best mean indexes by blending.  Points
+    // left over after the last full block, and all points if the
+    // platform has no vector lanes or vectorized is false, use the
+    // scalar KMeans4.nearest.  The distance is computed as dx*dx + dy*dy
+    // in both kernels, so they give the same assignment.
+
+    static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private final double[] xs, ys;
+    private final int k;
+    private final boolean vectorized;
+    private double[] mx, my;
+    private int iterations;
+
+    public KMeans4V(Point[] points, int k) {
+        this(points, k, SPECIES.length() > 1);
+    }
+
+    public KMeans4V(Point[] points, int k, boolean vectorized) {
+        this.xs = new double[points.length];
+        this.ys = new double[points.length];
+        for (int pi = 0; pi < points.length; pi++) {
+            xs[pi] = points[pi].x;
+            ys[pi] = points[pi].y;
+        }
+        this.k = k;
+        this.vectorized = vectorized;
+    }
+
+    public void findClusters(int[] initialPoints) {
+        final int n = xs.length, k = initialPoints.length;
+        final double[] mx = new double[k], my = new double[k];
+        final double[] sumx = new double[k], sumy = new double[k];
+        final int[] count = new int[k];
+        final int[] myCluster = new int[n];
+        for (int ci = 0; ci < k; ci++) {
+            mx[ci] = xs[initialPoints[ci]];
+            my[ci] = ys[initialPoints[ci]];
+        }
+        final double[] lanes = new double[SPECIES.length()];
+        final int bound = vectorized ? SPECIES.loopBound(n) : 0;
+        boolean converged = false;
+        while (!converged) {
+            iterations++;
+            {
+                // Assignment step: put each point in exactly one cluster
+                for (int pi = 0; pi < bound; pi += SPECIES.length())
+                    nearestBlock(pi, mx, my, myCluster, lanes);
+                for (int pi = bound; pi < n; pi++)
+                    myCluster[pi] = KMeans4.nearest(xs[pi], ys[pi], mx, my);
+            }
+            {
+                // Update step: recompute mean of each cluster
+                Arrays.fill(sumx, 0.0);
+                Arrays.fill(sumy, 0.0);
+                Arrays.fill(count, 0);
+                for (int pi = 0; pi < n; pi++) {
+                    int ci = myCluster[pi];
+                    sumx[ci] += xs[pi];
+                    sumy[ci] += ys[pi];
+                    count[ci]++;
+                }
+                converged = KMeans4.updateMeans(mx, my, sumx, sumy, count);
+            }
+        }
+        this.mx = mx;
+        this.my = my;
+    }
+
+    // Set myCluster[pi..pi+L-1] for the L = SPECIES.length() points at pi
+    private void nearestBlock(int pi, double[] mx, double[] my, int[] myCluster, double[] lanes) {
+        DoubleVector px = DoubleVector.fromArray(SPECIES, xs, pi),
+                     py = DoubleVector.fromArray(SPECIES, ys, pi);
+        DoubleVector best = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY),
+                     bestIndex = DoubleVector.zero(SPECIES);
+        for (int ci = 0; ci < mx.length; ci++) {
+            DoubleVector dx = px.sub(mx[ci]), dy = py.sub(my[ci]);
+            DoubleVector dist = dx.mul(dx).add(dy.mul(dy));
+            VectorMask<Double> nearer = dist.lt(best);
+            best = best.blend(dist, nearer);
+            bestIndex = bestIndex.blend(ci, nearer);
+        }
+        bestIndex.intoArray(lanes, 0);
+        for (int lane = 0; lane < lanes.length; lane++)
+            myCluster[pi + lane] = (int) lanes[lane];
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public void print() {
+        KMeans4.print(mx, my, iterations);
+    }
+}
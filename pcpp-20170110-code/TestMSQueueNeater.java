@@ -1,9 +1,374 @@
 // sestoft@itu.dk * 2016-11-18, 2017-01-08
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class TestMSQueueNeater extends Tests {
-  public static void main(String[] args) {
+  public static void main(String[] args) throws Exception {
+    testQueue(new MSQueueNeater<Integer>());
+    System.out.println("MSQueueNeater ok");
+    testQueue(new MSQueueVH<Integer>());
+    System.out.println("MSQueueVH ok");
+    testQueue(new MultiQueue<Integer>(4));
+    testStealing();
+    System.out.println("MultiQueue ok");
+    testQueue(new BlockingMSQueue<Integer>());
+    testBlocking(new BlockingMSQueue<Integer>());
+    testGiveUps(new BlockingMSQueue<Integer>());
+    System.out.println("BlockingMSQueue ok");
+    testDeque();
+    System.out.println("ChaseLevDeque ok");
+  }
+
+  // FIFO order in one thread, then producers and consumers running
+  // concurrently, first with single and then with batch operations
+  static void testQueue(UnboundedQueue<Integer> queue) throws Exception {
+    testSequential(queue);
+    testConcurrent(queue, 4, 4, 100_000, 1);
+    testConcurrent(queue, 4, 4, 100_000, 16);
+  }
+
+  static void testSequential(UnboundedQueue<Integer> queue) throws Exception {
+    assertTrue(queue.dequeue() == null);
+    for (int i = 0; i < 10; i++)
+      queue.enqueue(i);
+    queue.enqueueAll(Arrays.asList(10, 11, 12));
+    queue.enqueueAll(new ArrayList<Integer>());
+    List<Integer> sink = new ArrayList<Integer>();
+    assertEquals(queue.drainTo(sink, 5), 5);
+    for (int i = 0; i < 5; i++)
+      assertEquals(sink.get(i), i);
+    for (int i = 5; i < 13; i++)
+      assertEquals(queue.dequeue(), i);
+    assertTrue(queue.dequeue() == null);
+    assertEquals(queue.drainTo(sink, 5), 0);
+  }
+
+  // Each producer enqueues perProducer distinct items, in batches of
+  // the given size, and the consumers dequeue until all items are
+  // taken.  Then every item must have been taken exactly once, and
+  // each consumer must have seen the items of each producer in the
+  // order they were enqueued.
+  static void testConcurrent(final UnboundedQueue<Integer> queue, int producers, int consumers,
+	                     final int perProducer, final int batch) throws Exception {
+    final int total = producers * perProducer;
+    final AtomicInteger taken = new AtomicInteger();
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    final List<List<Integer>> takenBy = new ArrayList<List<Integer>>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int c = 0; c < consumers; c++) {
+      final List<Integer> got = new ArrayList<Integer>();
+      takenBy.add(got);
+      threads.add(new Thread(() -> {
+	while (taken.get() < total && System.nanoTime() < deadline)
+	  if (batch == 1) {
+	    Integer item = queue.dequeue();
+	    if (item != null) {
+	      got.add(item);
+	      taken.incrementAndGet();
+	    }
+	  } else
+	    taken.addAndGet(queue.drainTo(got, batch));
+      }));
+    }
+    for (int p = 0; p < producers; p++) {
+      final int first = p * perProducer;
+      threads.add(new Thread(() -> {
+	List<Integer> items = new ArrayList<Integer>();
+	for (int i = first; i < first + perProducer; i++)
+	  if (batch == 1)
+	    queue.enqueue(i);
+	  else {
+	    items.add(i);
+	    if (items.size() == batch || i == first + perProducer - 1) {
+	      queue.enqueueAll(items);
+	      items.clear();
+	    }
+	  }
+      }));
+    }
+    for (Thread t : threads)
+      t.start();
+    for (Thread t : threads)
+      t.join();
+    assertTrue(queue.dequeue() == null);
+    checkTaken(takenBy, producers, perProducer);
+  }
+
+  // MultiQueue consumers that must steal.  Items enqueued by other
+  // threads sit on those threads' home shards, so taking them all from
+  // the main thread takes some from other shards than its own.  Then
+  // with 16 shards, 2 producers and 6 consumers, most consumers have no
+  // items on their home shard and take by stealing, concurrently with
+  // the producers.
+  static void testStealing() throws Exception {
+    final MultiQueue<Integer> queue = new MultiQueue<Integer>(16);
+    final int producers = 8, perProducer = 100;
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int p = 0; p < producers; p++) {
+      final int first = p * perProducer;
+      threads.add(new Thread(() -> {
+	for (int i = first; i < first + perProducer; i++)
+	  queue.enqueue(i);
+      }));
+    }
+    for (Thread t : threads)
+      t.start();
+    for (Thread t : threads)
+      t.join();
+    List<Integer> got = new ArrayList<Integer>();
+    Integer item;
+    while ((item = queue.dequeue()) != null)
+      got.add(item);
+    checkTaken(Arrays.asList(got), producers, perProducer);
+    testConcurrent(queue, 2, 6, 100_000, 1);
+    testConcurrent(queue, 2, 6, 100_000, 16);
+  }
+
+  // Consumers that block: take until a stop item, and poll with short
+  // timeouts, against producers that pause now and then so that the
+  // consumers park.  Then a take that is interrupted, and a take that
+  // must still be woken after that.
+  static void testBlocking(final BlockingMSQueue<Integer> queue) throws Exception {
+    final int producers = 3, consumers = 5, perProducer = 50_000, total = producers * perProducer;
+    long start = System.nanoTime();
+    assertTrue(queue.poll(20, TimeUnit.MILLISECONDS) == null);
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    for (final boolean timed : new boolean[] { false, true }) {
+      final AtomicInteger taken = new AtomicInteger();
+      final List<List<Integer>> takenBy = new ArrayList<List<Integer>>();
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int c = 0; c < consumers; c++) {
+	final List<Integer> got = new ArrayList<Integer>();
+	takenBy.add(got);
+	threads.add(new Thread(() -> {
+	  try {
+	    while (true) {
+	      Integer item = timed ? queue.poll(100, TimeUnit.MICROSECONDS) : queue.take();
+	      if (item == null)
+	        continue;
+	      if (item < 0)
+	        return;
+	      got.add(item);
+	      if (timed && taken.incrementAndGet() == total)
+	        for (int i = 0; i < consumers; i++)
+	          queue.enqueue(-1);
+	    }
+	  } catch (InterruptedException exn) { }
+	}));
+      }
+      List<Thread> producerThreads = new ArrayList<Thread>();
+      for (int p = 0; p < producers; p++) {
+	final int first = p * perProducer;
+	producerThreads.add(new Thread(() -> {
+	  for (int i = first; i < first + perProducer; i++) {
+	    queue.enqueue(i);
+	    if (i % 1000 == 0)
+	      try { Thread.sleep(1); } catch (InterruptedException exn) { }
+	  }
+	}));
+      }
+      threads.addAll(producerThreads);
+      for (Thread t : threads)
+	t.start();
+      for (Thread t : producerThreads)
+	t.join();
+      if (!timed)
+	for (int i = 0; i < consumers; i++)
+	  queue.enqueue(-1);
+      for (Thread t : threads)
+	t.join();
+      assertTrue(queue.dequeue() == null);
+      checkTaken(takenBy, producers, perProducer);
+    }
+    final AtomicBoolean interrupted = new AtomicBoolean();
+    Thread t = new Thread(() -> {
+      try {
+	queue.take();
+      } catch (InterruptedException exn) {
+	interrupted.set(true);
+      }
+    });
+    t.start();
+    Thread.sleep(50);
+    t.interrupt();
+    t.join();
+    assertTrue(interrupted.get());
+    final AtomicInteger got = new AtomicInteger();
+    t = new Thread(() -> {
+      try {
+	got.set(queue.take());
+      } catch (InterruptedException exn) { }
+    });
+    t.start();
+    Thread.sleep(50);
+    queue.enqueue(42);
+    t.join(10_000);
+    assertEquals(got.get(), 42);
+  }
+
+  // The owner pushes and pops at the bottom, in one thread and then
+  // racing thieves that steal from the top.  Starting from capacity 2
+  // makes the array grow while thieves read it.
+  static void testDeque() throws Exception {
+    ChaseLevDeque<Integer> deque = new ChaseLevDeque<Integer>(2);
+    assertTrue(deque.isEmpty() && deque.pop() == null && deque.steal() == null);
+    for (int i = 0; i < 10; i++)
+      deque.push(i);
+    assertEquals(deque.pop(), 9);
+    assertEquals(deque.steal(), 0);
+    assertEquals(deque.steal(), 1);
+    for (int i = 8; i >= 2; i--)
+      assertEquals(deque.pop(), i);
+    assertTrue(deque.isEmpty() && deque.pop() == null && deque.steal() == null);
+
+    final ChaseLevDeque<Integer> shared = new ChaseLevDeque<Integer>(2);
+    final int thieves = 3, n = 200_000;
+    final AtomicBoolean done = new AtomicBoolean();
+    final List<List<Integer>> stolenBy = new ArrayList<List<Integer>>();
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int s = 0; s < thieves; s++) {
+      final List<Integer> got = new ArrayList<Integer>();
+      stolenBy.add(got);
+      threads.add(new Thread(() -> {
+	while (!done.get() || !shared.isEmpty()) {
+	  Integer item = shared.steal();
+	  if (item != null)
+	    got.add(item);
+	}
+      }));
+    }
+    for (Thread t : threads)
+      t.start();
+    List<Integer> popped = new ArrayList<Integer>();
+    Integer item;
+    for (int i = 0; i < n; i++) {
+      shared.push(i);
+      if (i % 3 == 0 && (item = shared.pop()) != null)
+	popped.add(item);
+    }
+    while ((item = shared.pop()) != null)
+      popped.add(item);
+    done.set(true);
+    for (Thread t : threads)
+      t.join();
+    // Each thief steals in push order, and every item is taken once
+    final int[] times = new int[n];
+    for (List<Integer> got : stolenBy) {
+      for (int i = 1; i < got.size(); i++)
+	assertTrue(got.get(i - 1) < got.get(i));
+      for (int i : got)
+	times[i]++;
+    }
+    for (int i : popped)
+      times[i]++;
+    for (int t : times)
+      assertEquals(t, 1);
+  }
+
+  // Consumers that give up leave their waiters in the registry.  First
+  // some poll once and time out, and then a consumer parks in take
+  // behind their waiters; an enqueue must skip those and wake it.  Then
+  // consumers keep giving up, by polling with very short timeouts,
+  // while a producer enqueues and one consumer waits in take, and each
+  // enqueue must still find a waiting consumer.  At the end only the
+  // taker waits, and one more enqueue must wake it.
+  static void testGiveUps(final BlockingMSQueue<Integer> queue) throws Exception {
+    List<Thread> quitters = new ArrayList<Thread>();
+    for (int c = 0; c < 4; c++)
+      quitters.add(new Thread(() -> {
+	try {
+	  queue.poll(1, TimeUnit.MILLISECONDS);
+	} catch (InterruptedException exn) { }
+      }));
+    for (Thread t : quitters)
+      t.start();
+    for (Thread t : quitters)
+      t.join();
+    final AtomicInteger first = new AtomicInteger(-1);
+    Thread parked = new Thread(() -> {
+      try {
+	first.set(queue.take());
+      } catch (InterruptedException exn) { }
+    });
+    parked.start();
+    Thread.sleep(50);
+    queue.enqueue(7);
+    parked.join(10_000);
+    assertEquals(first.get(), 7);
+    final int pollers = 4, n = 20_000;
+    final AtomicBoolean stop = new AtomicBoolean();
+    final List<List<Integer>> takenBy = new ArrayList<List<Integer>>();
+    final List<Integer> taken = new ArrayList<Integer>();
+    takenBy.add(taken);
+    Thread taker = new Thread(() -> {
+      try {
+	for (int item; (item = queue.take()) >= 0; )
+	  taken.add(item);
+      } catch (InterruptedException exn) { }
+    });
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int c = 0; c < pollers; c++) {
+      final List<Integer> got = new ArrayList<Integer>();
+      takenBy.add(got);
+      threads.add(new Thread(() -> {
+	try {
+	  while (!stop.get()) {
+	    Integer item = queue.poll(10, TimeUnit.MICROSECONDS);
+	    if (item != null)
+	      got.add(item);
+	  }
+	} catch (InterruptedException exn) { }
+      }));
+    }
+    taker.start();
+    for (Thread t : threads)
+      t.start();
+    for (int i = 0; i < n; i++) {
+      queue.enqueue(i);
+      if (i % 100 == 0)
+	Thread.sleep(1);
+    }
+    stop.set(true);
+    for (Thread t : threads)
+      t.join();
+    Thread.sleep(50);
+    queue.enqueue(-1);
+    taker.join(10_000);
+    assertTrue(!taker.isAlive());
+    assertTrue(queue.dequeue() == null);
+    checkTaken(takenBy, 1, n);
+  }
+
+  // Every item taken exactly once, and in each list the items of each
+  // producer in increasing order
+  static void checkTaken(List<List<Integer>> takenBy, int producers, int perProducer)
+    throws Exception
+  {
+    final int[] times = new int[producers * perProducer];
+    for (List<Integer> got : takenBy) {
+      final int[] last = new int[producers];
+      Arrays.fill(last, -1);
+      for (int item : got) {
+	times[item]++;
+	int p = item / perProducer;
+	assertTrue(item > last[p]);
+	last[p] = item;
+      }
+    }
+    for (int n : times)
+      assertEquals(n, 1);
   }
 }
 
@@ -22,6 +387,23 @@ class Tests {
 interface UnboundedQueue<T> {
   void enqueue(T item);
   T dequeue();
+
+  // Enqueue the items in iteration order, as one batch if supported
+  default void enqueueAll(Collection<? extends T> items) {
+    for (T item : items)
+      enqueue(item);
+  }
+
+  // Dequeue up to max items into sink, return the number dequeued
+  default int drainTo(Collection<? super T> sink, int max) {
+    int n = 0;
+    T item;
+    while (n < max && (item = dequeue()) != null) {
+      sink.add(item);
+      n++;
+    }
+    return n;
+  }
 }
 
 // Unbounded non-blocking list-based lock-free queue by Michael and
@@ -62,6 +444,61 @@ class MSQueueNeater<T> implements UnboundedQueue<T> {
     }
   }
 
+  // Link the items into a private chain, then append the whole chain
+  // with a single CAS on the last node's next, as enqueue appends one
+  // node.  Until tail reaches the end of the chain, other threads help
+  // move it along one node at a time, so lock-freedom is preserved.
+  public void enqueueAll(Collection<? extends T> items) {
+    Iterator<? extends T> it = items.iterator();
+    if (!it.hasNext())
+      return;
+    final Node<T> chain = new Node<T>(it.next(), null);
+    Node<T> end = chain;
+    while (it.hasNext()) {
+      Node<T> node = new Node<T>(it.next(), null);
+      end.next.set(node);
+      end = node;
+    }
+    while (true) {
+      final Node<T> last = tail.get(), next = last.next.get();
+      if (next != null)
+	tail.compareAndSet(last, next);
+      else if (last.next.compareAndSet(null, chain)) {
+	tail.compareAndSet(last, end);
+	return;
+      }
+    }
+  }
+
+  // Claim the run of up to max nodes after head with a single CAS on
+  // head, as dequeue claims one node.  The run never extends past the
+  // tail read before it, so head does not overtake tail.
+  public int drainTo(Collection<? super T> sink, int max) {
+    while (max > 0) {
+      final Node<T> first = head.get(), last = tail.get(), next = first.next.get();
+      if (next == null)
+	return 0;
+      else if (first == last) 
+	tail.compareAndSet(last, next);
+      else {
+	Node<T> end = first;
+	int n = 0;
+	while (n < max && end != last) {
+	  end = end.next.get();
+	  n++;
+	}
+	if (head.compareAndSet(first, end)) {
+	  for (Node<T> node = first; node != end; ) {
+	    node = node.next.get();
+	    sink.add(node.item);
+	  }
+	  return n;
+	}
+      }
+    }
+    return 0;
+  }
+
   private static class Node<T> {
     final T item;
     final AtomicReference<Node<T>> next;
@@ -72,3 +509,559 @@ class MSQueueNeater<T> implements UnboundedQueue<T> {
     }
   }
 }
+
+// The same algorithm with the links, head and tail as plain volatile
+// fields updated by VarHandle compare-and-set, so an enqueue allocates
+// only the Node and following a link is a single load.  Head and tail
+// are kept on separate cache lines by padding superclasses (the JVM
+// lays out superclass fields first), so that enqueuers and dequeuers
+// do not invalidate each other's line.  A dequeued node becomes the
+// new dummy, and its item is cleared so the queue does not keep it
+// alive.  VarHandle requires Java 9.
+
+abstract class MSQueueVHPad0 {
+  long p00, p01, p02, p03, p04, p05, p06, p07;
+  long p08, p09, p0a, p0b, p0c, p0d, p0e, p0f;
+}
+
+abstract class MSQueueVHHead<T> extends MSQueueVHPad0 {
+  volatile MSQueueVH.Node<T> head;
+}
+
+abstract class MSQueueVHPad1<T> extends MSQueueVHHead<T> {
+  long p10, p11, p12, p13, p14, p15, p16, p17;
+  long p18, p19, p1a, p1b, p1c, p1d, p1e, p1f;
+}
+
+abstract class MSQueueVHTail<T> extends MSQueueVHPad1<T> {
+  volatile MSQueueVH.Node<T> tail;
+}
+
+abstract class MSQueueVHPad2<T> extends MSQueueVHTail<T> {
+  long p20, p21, p22, p23, p24, p25, p26, p27;
+  long p28, p29, p2a, p2b, p2c, p2d, p2e, p2f;
+}
+
+class MSQueueVH<T> extends MSQueueVHPad2<T> implements UnboundedQueue<T> {
+  private static final VarHandle HEAD, TAIL, NEXT;
+
+  static {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      HEAD = lookup.findVarHandle(MSQueueVHHead.class, "head", Node.class);
+      TAIL = lookup.findVarHandle(MSQueueVHTail.class, "tail", Node.class);
+      NEXT = lookup.findVarHandle(Node.class, "next", Node.class);
+    } catch (ReflectiveOperationException exn) {
+      throw new ExceptionInInitializerError(exn);
+    }
+  }
+
+  public MSQueueVH() {
+    Node<T> dummy = new Node<T>(null);
+    head = tail = dummy;
+  }
+
+  public void enqueue(T item) { // at tail
+    Node<T> node = new Node<T>(item);
+    while (true) {
+      final Node<T> last = tail, next = last.next;
+      if (next != null)
+	TAIL.compareAndSet(this, last, next);
+      else if (NEXT.compareAndSet(last, null, node)) {
+	TAIL.compareAndSet(this, last, node);
+	return;
+      }
+    }
+  }
+
+  public T dequeue() { // from head
+    while (true) {
+      final Node<T> first = head, last = tail, next = first.next;
+      if (next == null)
+	return null;
+      else if (first == last) 
+	TAIL.compareAndSet(this, last, next);
+      else if (HEAD.compareAndSet(this, first, next)) {
+	// Only the dequeuer that moved head to next reads its item
+	T item = next.item;
+	next.item = null;
+	return item;
+      }
+    }
+  }
+
+  // As in MSQueueNeater, one CAS appends a private chain of nodes,
+  // whose links are written in plain mode since that CAS publishes them
+  public void enqueueAll(Collection<? extends T> items) {
+    Iterator<? extends T> it = items.iterator();
+    if (!it.hasNext())
+      return;
+    final Node<T> chain = new Node<T>(it.next());
+    Node<T> end = chain;
+    while (it.hasNext()) {
+      Node<T> node = new Node<T>(it.next());
+      NEXT.set(end, node);
+      end = node;
+    }
+    while (true) {
+      final Node<T> last = tail, next = last.next;
+      if (next != null)
+	TAIL.compareAndSet(this, last, next);
+      else if (NEXT.compareAndSet(last, null, chain)) {
+	TAIL.compareAndSet(this, last, end);
+	return;
+      }
+    }
+  }
+
+  // As in MSQueueNeater, one CAS on head claims a run of nodes no
+  // further than tail; the items of the run are then cleared
+  public int drainTo(Collection<? super T> sink, int max) {
+    while (max > 0) {
+      final Node<T> first = head, last = tail, next = first.next;
+      if (next == null)
+	return 0;
+      else if (first == last) 
+	TAIL.compareAndSet(this, last, next);
+      else {
+	Node<T> end = first;
+	int n = 0;
+	while (n < max && end != last) {
+	  end = end.next;
+	  n++;
+	}
+	if (HEAD.compareAndSet(this, first, end)) {
+	  for (Node<T> node = first; node != end; ) {
+	    node = node.next;
+	    sink.add(node.item);
+	    node.item = null;
+	  }
+	  return n;
+	}
+      }
+    }
+    return 0;
+  }
+
+  static class Node<T> {
+    T item;                     // Written before the node is linked in
+    volatile Node<T> next;
+
+    public Node(T item) {
+      this.item = item;
+    }
+  }
+}
+
+// Blocking consumers on top of a lock-free queue.  take() and poll()
+// first spin, trying to dequeue, and then park the thread.  A parking
+// consumer enqueues a Waiter on a registry queue and increments the
+// waiting count, and only then tries to dequeue once more before
+// parking; a producer enqueues its item and then reads the count.  So
+// either the producer sees the waiter and unparks it, or the consumer
+// sees the item, and no wakeup is lost.  While no consumer is parked
+// the count is zero, and enqueue costs only the CASes of the
+// underlying queue and one volatile read.  Each consumer thread has
+// one Waiter per queue, which is WAITING while it is parked, IDLE when
+// it is in the registry but its consumer is not waiting, and OUT when
+// it is not in the registry.  A waiting consumer leaves WAITING either
+// by a producer signalling it, which dequeues it and sets it OUT, or
+// by giving up (on finding an item, timeout or interrupt), which sets
+// it IDLE; whoever leaves WAITING decrements the count.  A consumer
+// that gives up after a producer signalled it passes that signal on.
+// A consumer that parks again rearms its IDLE waiter in place, and
+// enqueues it again only if it is OUT.  So a waiter is in the registry
+// at most once, the registry holds no more entries than there are
+// consumer threads, and a producer drops IDLE entries as it meets
+// them.  No live waiter is ever taken out of the registry except to
+// be signalled, so a producer that finds the registry empty has no
+// one to wake, and returns.
+
+class BlockingMSQueue<T> implements UnboundedQueue<T> {
+  private static final int SPINS = 100;
+
+  private final UnboundedQueue<T> queue;
+  private final UnboundedQueue<Waiter> waiters = new MSQueueVH<Waiter>();
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final ThreadLocal<Waiter> waiter =
+    ThreadLocal.withInitial(() -> new Waiter(Thread.currentThread()));
+
+  public BlockingMSQueue() {
+    this(new MSQueueVH<T>());
+  }
+
+  public BlockingMSQueue(UnboundedQueue<T> queue) {
+    this.queue = queue;
+  }
+
+  public void enqueue(T item) {
+    queue.enqueue(item);
+    if (waiting.get() > 0)
+      signal();
+  }
+
+  public void enqueueAll(Collection<? extends T> items) {
+    queue.enqueueAll(items);
+    for (int i = 0; i < items.size() && waiting.get() > 0; i++)
+      signal();
+  }
+
+  public T dequeue() {
+    return queue.dequeue();
+  }
+
+  public int drainTo(Collection<? super T> sink, int max) {
+    return queue.drainTo(sink, max);
+  }
+
+  // Dequeue, waiting as long as necessary for an item
+  public T take() throws InterruptedException {
+    return await(false, 0L);
+  }
+
+  // Dequeue, waiting at most the timeout; return null if it elapses
+  public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+    return await(true, unit.toNanos(timeout));
+  }
+
+  private T await(boolean timed, long nanos) throws InterruptedException {
+    final long deadline = timed ? System.nanoTime() + nanos : 0L;
+    while (true) {
+      for (int i = 0; i < SPINS; i++) {
+	T item = queue.dequeue();
+	if (item != null)
+	  return item;
+	Thread.onSpinWait();
+      }
+      final Waiter w = waiter.get();
+      waiting.incrementAndGet();
+      if (!w.state.compareAndSet(Waiter.IDLE, Waiter.WAITING)) {
+	w.state.set(Waiter.WAITING);      // It was OUT
+	waiters.enqueue(w);
+      }
+      T item = queue.dequeue();
+      while (item == null && w.state.get() == Waiter.WAITING) {
+	if (Thread.interrupted()) {
+	  giveUp(w);
+	  throw new InterruptedException();
+	}
+	if (timed) {
+	  long left = deadline - System.nanoTime();
+	  if (left <= 0) {
+	    giveUp(w);
+	    return queue.dequeue();
+	  }
+	  LockSupport.parkNanos(this, left);
+	} else
+	  LockSupport.park(this);
+      }
+      if (item != null) {
+	giveUp(w);
+	return item;
+      }
+      // Signalled: spin again, and park again if another consumer won
+    }
+  }
+
+  // Stop waiting, or pass on a signal that already woke us
+  private void giveUp(Waiter w) {
+    if (w.state.compareAndSet(Waiter.WAITING, Waiter.IDLE))
+      waiting.decrementAndGet();
+    else
+      signal();
+  }
+
+  // Wake the first waiting consumer in the registry, dropping IDLE
+  // entries on the way
+  private void signal() {
+    Waiter w;
+    while (waiting.get() > 0 && (w = waiters.dequeue()) != null)
+      if (w.state.getAndSet(Waiter.OUT) == Waiter.WAITING) {
+	waiting.decrementAndGet();
+	LockSupport.unpark(w.thread);
+	return;
+      }
+  }
+
+  private static class Waiter {
+    static final int OUT = 0, IDLE = 1, WAITING = 2;
+
+    final Thread thread;
+    final AtomicInteger state = new AtomicInteger(OUT);
+
+    Waiter(Thread thread) {
+      this.thread = thread;
+    }
+  }
+}
+
+// A relaxed FIFO queue striped over several MS queues, so that many
+// threads do not all contend on one head and one tail.  A thread
+// enqueues on its home shard, chosen by the identity hash of the
+// thread, and dequeues from its home shard first; if that is empty it
+// steals, trying the other shards from a random one on.  Items
+// enqueued by one thread leave in the order they were enqueued, but
+// items from different threads may be reordered, and dequeue returns
+// null only if it found every shard empty as it looked at it, so it
+// may miss an item enqueued concurrently.  A single shard gives the
+// strict FIFO behaviour of MSQueueVH.
+
+class MultiQueue<T> implements UnboundedQueue<T> {
+  private final UnboundedQueue<T>[] shards;
+
+  public MultiQueue() {
+    this(Math.max(2, Runtime.getRuntime().availableProcessors()));
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public MultiQueue(int shardCount) {
+    shards = (UnboundedQueue<T>[]) new UnboundedQueue[shardCount];
+    for (int s = 0; s < shardCount; s++)
+      shards[s] = new MSQueueVH<T>();
+  }
+
+  private int home() {
+    int h = System.identityHashCode(Thread.currentThread());
+    return ((h ^ (h >>> 16)) & 0x7fffffff) % shards.length;
+  }
+
+  public void enqueue(T item) {
+    shards[home()].enqueue(item);
+  }
+
+  public void enqueueAll(Collection<? extends T> items) {
+    shards[home()].enqueueAll(items);
+  }
+
+  public T dequeue() {
+    final int home = home();
+    T item = shards[home].dequeue();
+    if (item != null || shards.length == 1)
+      return item;
+    final int start = ThreadLocalRandom.current().nextInt(shards.length - 1);
+    for (int i = 0; i < shards.length - 1; i++) {
+      item = shards[(home + 1 + (start + i) % (shards.length - 1)) % shards.length].dequeue();
+      if (item != null)
+	return item;
+    }
+    return null;
+  }
+
+  // From the home shard if it is not empty, else from the first
+  // non-empty shard found as in dequeue
+  public int drainTo(Collection<? super T> sink, int max) {
+    final int home = home();
+    int n = shards[home].drainTo(sink, max);
+    if (n > 0 || shards.length == 1)
+      return n;
+    final int start = ThreadLocalRandom.current().nextInt(shards.length - 1);
+    for (int i = 0; i < shards.length - 1 && n == 0; i++)
+      n = shards[(home + 1 + (start + i) % (shards.length - 1)) % shards.length].drainTo(sink, max);
+    return n;
+  }
+
+  public int shardCount() {
+    return shards.length;
+  }
+}
+
+// Lock-free work-stealing deque by Chase and Lev 2005, with the
+// corrections of Le, Pop, Cohen and Zappa Nardelli 2013.  Only the
+// owning thread may push and pop, at the bottom; any thread may steal,
+// at the top.  Owner and thieves contend only when one item is left,
+// and then decide by a CAS on top.  The circular array doubles when
+// full; a thief that still reads the old array finds the same item
+// there.  Here top and bottom are volatile, so the fences of the C11
+// formulation are implied.
+
+class ChaseLevDeque<T> {
+  private static final VarHandle TOP, ELEM = MethodHandles.arrayElementVarHandle(Object[].class);
+
+  static {
+    try {
+      TOP = MethodHandles.lookup().findVarHandle(ChaseLevDeque.class, "top", long.class);
+    } catch (ReflectiveOperationException exn) {
+      throw new ExceptionInInitializerError(exn);
+    }
+  }
+
+  private volatile long top, bottom;
+  private volatile Object[] array;
+
+  public ChaseLevDeque() {
+    this(64);
+  }
+
+  public ChaseLevDeque(int capacity) {        // A power of 2
+    array = new Object[capacity];
+  }
+
+  public void push(T item) { // at bottom, by owner only
+    final long b = bottom, t = top;
+    Object[] a = array;
+    if (b - t > a.length - 1)
+      a = grow(a, t, b);
+    ELEM.setRelease(a, (int) (b & (a.length - 1)), item);
+    bottom = b + 1;
+  }
+
+  @SuppressWarnings("unchecked")
+  public T pop() { // from bottom, by owner only
+    final long b = bottom - 1;
+    final Object[] a = array;
+    bottom = b;
+    final long t = top;
+    if (t > b) {                // Empty
+      bottom = b + 1;
+      return null;
+    }
+    final int i = (int) (b & (a.length - 1));
+    T item = (T) ELEM.getAcquire(a, i);
+    if (t < b) {                // More than one item, no thief can take this
+      ELEM.setRelease(a, i, null);
+      return item;
+    }
+    if (!TOP.compareAndSet(this, t, t + 1))  // Last item, race thieves for it
+      item = null;
+    bottom = b + 1;
+    return item;
+  }
+
+  // From top, by any thread; null if empty or another thread got there first
+  @SuppressWarnings("unchecked")
+  public T steal() {
+    final long t = top, b = bottom;
+    if (t >= b)
+      return null;
+    final Object[] a = array;
+    final T item = (T) ELEM.getAcquire(a, (int) (t & (a.length - 1)));
+    return TOP.compareAndSet(this, t, t + 1) ? item : null;
+  }
+
+  public boolean isEmpty() {
+    return top >= bottom;
+  }
+
+  private Object[] grow(Object[] a, long t, long b) {
+    Object[] bigger = new Object[2 * a.length];
+    for (long i = t; i < b; i++)
+      bigger[(int) (i & (bigger.length - 1))] = a[(int) (i & (a.length - 1))];
+    array = bigger;
+    return bigger;
+  }
+}
+
+// A small work-stealing scheduler on ChaseLevDeques.  invoke(root)
+// runs root on one of workerCount worker threads and returns when root
+// and all tasks spawned from it, transitively, have completed.  A task
+// running on a worker spawns a subtask by pushing it on that worker's
+// deque; a worker runs tasks popped from its own deque, and when that
+// is empty steals from the other workers, starting at a random one.
+// The root task is handed to the workers through an MSQueueVH.  A
+// count of pending tasks detects completion; workers with nothing to
+// do yield while tasks are pending and park between invocations.
+
+class StealingPool {
+  private final Worker[] workers;
+  private final UnboundedQueue<Runnable> injected = new MSQueueVH<Runnable>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+  private volatile Thread caller;
+  private volatile boolean shutdown;
+
+  public StealingPool(int workerCount) {
+    workers = new Worker[workerCount];
+    for (int w = 0; w < workerCount; w++)
+      workers[w] = new Worker(w);
+    for (Worker worker : workers)
+      worker.start();
+  }
+
+  public int workerCount() {
+    return workers.length;
+  }
+
+  public synchronized void invoke(Runnable root) {
+    caller = Thread.currentThread();
+    failure.set(null);
+    pending.set(1);
+    injected.enqueue(root);
+    for (Worker worker : workers)
+      LockSupport.unpark(worker);
+    while (pending.get() != 0)
+      LockSupport.park(this);
+    Throwable exn = failure.get();
+    if (exn != null)
+      throw new RuntimeException(exn);
+  }
+
+  // Spawn a subtask; may be called only from a task running in this pool
+  public void spawn(Runnable task) {
+    Worker worker = currentWorker();
+    pending.incrementAndGet();
+    worker.deque.push(task);
+  }
+
+  // Index of the worker running the calling task, in 0..workerCount-1
+  public int workerIndex() {
+    return currentWorker().index;
+  }
+
+  private Worker currentWorker() {
+    Thread current = Thread.currentThread();
+    if (!(current instanceof Worker) || ((Worker) current).pool() != this)
+      throw new IllegalStateException("Not a worker of this pool");
+    return (Worker) current;
+  }
+
+  public void shutdown() {
+    shutdown = true;
+    for (Worker worker : workers)
+      LockSupport.unpark(worker);
+  }
+
+  private class Worker extends Thread {
+    final int index;
+    final ChaseLevDeque<Runnable> deque = new ChaseLevDeque<Runnable>();
+
+    Worker(int index) {
+      this.index = index;
+      setDaemon(true);
+    }
+
+    StealingPool pool() {
+      return StealingPool.this;
+    }
+
+    public void run() {
+      while (!shutdown) {
+	Runnable task = findTask();
+	if (task != null) {
+	  try {
+	    task.run();
+	  } catch (Throwable exn) {
+	    failure.compareAndSet(null, exn);
+	  }
+	  if (pending.decrementAndGet() == 0)
+	    LockSupport.unpark(caller);
+	} else if (pending.get() == 0)
+	  LockSupport.park(StealingPool.this);
+	else
+	  Thread.yield();
+      }
+    }
+
+    private Runnable findTask() {
+      Runnable task = deque.pop();
+      if (task == null)
+	task = injected.dequeue();
+      for (int i = 0, start = ThreadLocalRandom.current().nextInt(workers.length);
+	   task == null && i < workers.length; i++) {
+	Worker victim = workers[(start + i) % workers.length];
+	if (victim != this)
+	  task = victim.deque.steal();
+      }
+      return task;
+    }
+  }
+}